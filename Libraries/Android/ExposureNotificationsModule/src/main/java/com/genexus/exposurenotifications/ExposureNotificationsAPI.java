@@ -70,6 +70,7 @@ public class ExposureNotificationsAPI extends ExternalApi {
 	public static final String PROPERTY_WAS_EXPOSURE_DETECTED = "ExposureDetected"; //boolean
 	private static final String PROPERTY_EXPOSURE_DETECTION_MIN_INTERVAL = "ExposureDetectionMinInterval"; //numeric read-write
 	private static final String PROPERTY_EXPOSURE_INFO_EXPLANATION = "ExposureInformationUserExplanation"; //varchar read-write
+	private static final String PROPERTY_ROAMING_REGIONS = "RoamingRegions"; //varchar read-write, country codes separated by commas
 
 	private static final String PROPERTY_BLUETOOTH_ENABLED = "BluetoothEnabled"; //boolean
 
@@ -106,6 +107,7 @@ public class ExposureNotificationsAPI extends ExternalApi {
 		addReadonlyPropertyHandler(PROPERTY_AUTHORIZATION_STATUS, mGetAuthorizationStatus );
 		addPropertyHandler(PROPERTY_EXPOSURE_DETECTION_MIN_INTERVAL, mGetExposureDetectionInterval, mSetExposureDetectionInterval);
 		addPropertyHandler(PROPERTY_EXPOSURE_INFO_EXPLANATION, mGetExposureInformationUserExplanation, mSetExposureInformationUserExplanation);
+		addPropertyHandler(PROPERTY_ROAMING_REGIONS, mGetRoamingRegions, mSetRoamingRegions);
 		addReadonlyPropertyHandler(PROPERTY_EXPOSURE_DETECTION_RESULT, mGetExposureDetectionResult );
 		addReadonlyPropertyHandler(PROPERTY_WAS_EXPOSURE_DETECTED, mGetExposureDetected );
 		addReadonlyPropertyHandler(PROPERTY_BLUETOOTH_ENABLED, mGetBluetoothEnabled );
@@ -122,6 +124,7 @@ public class ExposureNotificationsAPI extends ExternalApi {
 		//test
 		addMethodHandler("test", 0, mMethodTest);
 		addMethodHandler("StartDetectionSession", 0, mMethodStartDetectionSession);
+		addMethodHandler("GetSyncProgress", 0, mMethodGetSyncProgress); // return json
 		//test
 	}
 
@@ -153,6 +156,14 @@ public class ExposureNotificationsAPI extends ExternalApi {
 		return ExternalApiResult.SUCCESS_CONTINUE;
 	};
 
+	private final IMethodInvoker mGetRoamingRegions =
+		parameters -> ExternalApiResult.success(ExposureNotificationsAPIOffline.getRoamingRegions());
+
+	private final IMethodInvoker mSetRoamingRegions = parameters -> {
+		ExposureNotificationsAPIOffline.setRoamingRegions(parameters.get(0).toString());
+		return ExternalApiResult.SUCCESS_CONTINUE;
+	};
+
 
 
 	private final IMethodInvoker mGetExposureDetectionResult = new IMethodInvoker() {
@@ -558,7 +569,9 @@ public class ExposureNotificationsAPI extends ExternalApi {
 			/*
 			// Test download files to API
 			WorkManager workManager = WorkManager.getInstance(MyApplication.getInstance());
-			workManager.enqueue(new OneTimeWorkRequest.Builder(ProvideDiagnosisKeysWorker.class).build());
+			workManager.enqueue(new OneTimeWorkRequest.Builder(ProvideDiagnosisKeysWorker.class)
+				.addTag(ProvideDiagnosisKeysWorker.WORKER_NAME)
+				.build());
 			*/
 
 			//test
@@ -585,6 +598,9 @@ public class ExposureNotificationsAPI extends ExternalApi {
 
 	};
 
+	private final IMethodInvoker mMethodGetSyncProgress =
+		parameters -> ExternalApiResult.success(ExposureNotificationsAPIOffline.getSyncProgress());
+
 	@SuppressWarnings("deprecation")
 	private final IMethodInvoker mMethodStartDetectionSession = new IMethodInvoker() {
 		@NonNull
@@ -594,7 +610,9 @@ public class ExposureNotificationsAPI extends ExternalApi {
 
 			// Test download files to API
 			WorkManager workManager = WorkManager.getInstance(MyApplication.getInstance());
-			workManager.enqueue(new OneTimeWorkRequest.Builder(ProvideDiagnosisKeysWorker.class).build());
+			workManager.enqueue(new OneTimeWorkRequest.Builder(ProvideDiagnosisKeysWorker.class)
+				.addTag(ProvideDiagnosisKeysWorker.WORKER_NAME)
+				.build());
 
 			/*
 			//test
@@ -16,6 +16,7 @@ import com.genexus.xml.GXXMLSerializable;
 import com.google.android.apps.exposurenotification.activities.utils.ExposureNotificationPermissionHelper;
 import com.google.android.apps.exposurenotification.common.StringUtils;
 import com.google.android.apps.exposurenotification.nearby.ProvideDiagnosisKeysWorker;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationStorage;
 import com.google.android.apps.exposurenotification.storage.TokenEntity;
 import com.google.android.apps.exposurenotification.storage.TokenRepository;
@@ -199,6 +200,17 @@ public class ExposureNotificationsAPIOffline {
 		// TODO: have to use userExplanation somewhere ?.
 	}
 
+	// roamingRegions, country codes (ISO-Alpha-2) of the regions visited whose keys are also downloaded, separated by commas
+	public static String getRoamingRegions()
+	{
+		return DiagnosisKeyDownloadStorage.getRoamingRegions();
+	}
+
+	public static void setRoamingRegions(String roamingRegions)
+	{
+		DiagnosisKeyDownloadStorage.setRoamingRegions(roamingRegions);
+	}
+
 	public static boolean isExposureDetected()
 	{
 		TokenEntity tokenEntity = getLastToken();
@@ -409,6 +421,12 @@ public class ExposureNotificationsAPIOffline {
 		return true;
 	}
 
+	// getSyncProgress return json with the progress of the running sync
+	public static String getSyncProgress()
+	{
+		return ProvideDiagnosisKeysWorker.getProgress(MyApplication.getAppContext()).toString();
+	}
+
 	// bluetooth management.
 	public static boolean isBluetoothEnabled()
 	{
@@ -18,20 +18,23 @@
 package com.google.android.apps.exposurenotification.nearby;
 
 import android.content.Context;
-import android.util.Log;
+import androidx.annotation.NonNull;
 
 import com.artech.base.services.Services;
 import com.google.android.apps.exposurenotification.common.AppExecutors;
 import com.google.android.apps.exposurenotification.common.TaskToFutureAdapter;
+import com.google.android.apps.exposurenotification.network.DownloadProgress;
 import com.google.android.apps.exposurenotification.network.KeyFileBatch;
+import com.google.android.apps.exposurenotification.network.KeyFileContent;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationStorage;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.io.File;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
+import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 import org.threeten.bp.Duration;
 
 /**
@@ -51,51 +54,57 @@ public class DiagnosisKeyFileSubmitter {
   }
 
   /**
-   * Accepts batches of key files, and submits them to provideDiagnosisKeys(), and returns a future
-   * representing the completion of that task.
-   *
-   * <p>This naive implementation is not robust to individual failures. In fact, a single failure
-   * will fail the entire operation. A more robust implementation would support retries, partial
-   * completion, and other robustness measures.
-   *
-   * <p>Returns early if given an empty list of batches.
+   * Submits a single batch of key files to provideDiagnosisKeys(). On success its files are deleted,
+   * and the batch and the content of its files are recorded as provided so they're skipped in next
+   * downloads, and its files reported to {@code progress} as submitted.
    */
-  public ListenableFuture<?> submitFiles(List<KeyFileBatch> batches, String token) {
-    if (batches.isEmpty()) {
-      Log.d(TAG, "No files to provide to google play services.");
-      return Futures.immediateFuture(null);
-    }
-    Log.d(TAG, "Providing  " + batches.size() + " diagnosis key batches to google play services.");
-    List<ListenableFuture<?>> batchCompletions = new ArrayList<>();
-    for (KeyFileBatch b : batches) {
-      batchCompletions.add(submitBatch(b, token));
-    }
+  public ListenableFuture<?> submitBatch(
+      KeyFileBatch batch, String token, DownloadProgress progress) {
+	  Services.Log.debug(" submitBatch : token " + token);
+    ListenableFuture<?> batchDone = TaskToFutureAdapter.getFutureWithTimeout(
+        client.provideDiagnosisKeys(batch.files(), token),
+		PROVIDE_KEYS_TIMEOUT.toMillis(),
+        TimeUnit.MILLISECONDS,
+        AppExecutors.getScheduledExecutor());
+    Futures.addCallback(batchDone, new FutureCallback<Object>() {
+      @Override
+      public void onSuccess(@NullableDecl Object result) {
+        DiagnosisKeyDownloadStorage.setBatchProvided(batch.region(), batch.batchNum());
+        for (File f : batch.files()) {
+          String hash = KeyFileContent.hashOf(f);
+          // Files that couldn't be hashed were provided under their download name.
+          if (hash != null) {
+            DiagnosisKeyDownloadStorage.setContentProvided(hash);
+          }
+        }
+        progress.onSubmitted(batch.files().size());
+        for (File f : batch.files()) {
+			  Services.Log.debug(" delete temp file " + f.getAbsolutePath() );
+          f.delete();
+        }
+      }
+
+      @Override
+      public void onFailure(@NonNull Throwable t) {
+        // The files are left to their owner, a retry may provide them again.
+        Services.Log.error(TAG, "Failed to provide " + batch + ", will retry it.");
+      }
+    }, AppExecutors.getBackgroundExecutor());
 
-    ListenableFuture<?> allDone = Futures.allAsList(batchCompletions);
-    allDone.addListener(
+    return batchDone;
+  }
+
+  /**
+   * Records the time of the exposure detection once all the batches of the run were submitted.
+   */
+  public void recordExposureDetection(ListenableFuture<?> allBatchesDone) {
+    allBatchesDone.addListener(
         () -> {
-          for (KeyFileBatch b : batches) {
-            for (File f : b.files()) {
-				Services.Log.debug(" delete temp file " + f.getAbsolutePath() );
-              f.delete();
-            }
-          }
         	// set time last sync send to API correctly.
 			Services.Log.debug(" set time last sync success " );
 			long nowTime = new Date().getTime();
 			ExposureNotificationStorage.setLastPerformedExposureDetectionTimeStamp(nowTime);
 		},
         AppExecutors.getBackgroundExecutor());
-
-    return allDone;
-  }
-
-  private ListenableFuture<?> submitBatch(KeyFileBatch batch, String token) {
-	  Services.Log.debug(" submitBatch : token " + token);
-  	return TaskToFutureAdapter.getFutureWithTimeout(
-        client.provideDiagnosisKeys(batch.files(), token),
-		PROVIDE_KEYS_TIMEOUT.toMillis(),
-        TimeUnit.MILLISECONDS,
-        AppExecutors.getScheduledExecutor());
   }
 }
@@ -0,0 +1,111 @@
+package com.google.android.apps.exposurenotification.nearby;
+
+import static com.google.android.apps.exposurenotification.nearby.ProvideDiagnosisKeysWorker.DEFAULT_API_TIMEOUT;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.ListenableWorker;
+import androidx.work.WorkerParameters;
+
+import com.artech.base.services.Services;
+import com.google.android.apps.exposurenotification.common.AppExecutors;
+import com.google.android.apps.exposurenotification.common.TaskToFutureAdapter;
+import com.google.android.apps.exposurenotification.network.DiagnosisKeys;
+import com.google.android.apps.exposurenotification.network.DownloadProgress;
+import com.google.android.apps.exposurenotification.network.DownloadResult;
+import com.google.android.apps.exposurenotification.storage.TokenEntity;
+import com.google.android.apps.exposurenotification.storage.TokenRepository;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Download stage of a sync, see {@link ProvideDiagnosisKeysWorker#enqueueSync(Context)}: downloads
+ * the key files to disk and provides each batch to the API as soon as it's there, while the others
+ * still download. The batches not provided are left on disk for {@link SubmitKeysWorker}, which is
+ * handed the token used.
+ *
+ * <p>Batches already on disk are skipped, so a retry only fetches what's missing. Once out of
+ * attempts it still succeeds, for the submit stage to provide what was downloaded. Nothing is
+ * downloaded while exposure notifications are not enabled.
+ */
+public class DownloadKeysWorker extends ListenableWorker {
+
+	private static final String TAG = "DownloadKeysWorker";
+
+	private final DiagnosisKeys diagnosisKeys;
+	private final DiagnosisKeyFileSubmitter submitter;
+	private final TokenRepository tokenRepository;
+
+	public DownloadKeysWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+		super(context, workerParams);
+		diagnosisKeys = new DiagnosisKeys(context);
+		submitter = new DiagnosisKeyFileSubmitter(context);
+		tokenRepository = new TokenRepository(context);
+	}
+
+	@NonNull
+	@Override
+	public ListenableFuture<Result> startWork() {
+		Services.Log.debug(TAG, "Starting worker downloading diagnosis key files, attempt "
+			+ (getRunAttemptCount() + 1));
+		return FluentFuture.from(TaskToFutureAdapter
+			.getFutureWithTimeout(
+				ExposureNotificationClientWrapper.get(getApplicationContext()).isEnabled(),
+				DEFAULT_API_TIMEOUT.toMillis(),
+				TimeUnit.MILLISECONDS,
+				AppExecutors.getScheduledExecutor()))
+			.transformAsync(isEnabled -> {
+				// No use for the keys when the API is not enabled, don't spend data on them.
+				if (!isEnabled) {
+					Services.Log.debug(TAG, "Exposure notifications not enabled, nothing to download.");
+					return Futures.immediateFuture(Result.success());
+				}
+				// Progress is published as WorkManager progress, see ProvideDiagnosisKeysWorker.getProgress().
+				DownloadProgress progress = new DownloadProgress(p -> setProgressAsync(p.toData()));
+				return download(progress);
+			}, AppExecutors.getBackgroundExecutor())
+			.catching(Exception.class, x -> {
+				Services.Log.error(TAG, "Failure to download diagnosis keys", x);
+				return retryOrContinue();
+			}, AppExecutors.getBackgroundExecutor());
+	}
+
+	private ListenableFuture<Result> download(DownloadProgress progress) {
+		String token = SubmitKeysWorker.generateRandomToken();
+		AtomicInteger provided = new AtomicInteger();
+		ListenableFuture<DownloadResult> downloaded = diagnosisKeys.downloadToStore(
+			batch -> FluentFuture.from(submitter.submitBatch(batch, token, progress))
+				.transform(done -> provided.incrementAndGet(), AppExecutors.getLightweightExecutor()),
+			progress);
+		return FluentFuture.from(downloaded)
+			.transformAsync(result -> {
+				Result done = Result.success(
+					new Data.Builder().putString(SubmitKeysWorker.KEY_TOKEN, token).build());
+				if (result.succeeded().isEmpty() && result.isPartial()) {
+					done = retryOrContinue();
+				} else if (result.isPartial()) {
+					Services.Log.warning(TAG, result.failed().size() + " batches failed, left for the next sync.");
+				}
+				if (provided.get() == 0) {
+					return Futures.immediateFuture(done);
+				}
+				// Keep the token of the batches provided, the submit stage may provide more with it.
+				Services.Log.debug(TAG, provided.get() + " batches provided while downloading.");
+				submitter.recordExposureDetection(downloaded);
+				Result outcome = done;
+				return FluentFuture.from(tokenRepository.upsertAsync(TokenEntity.create(token, false)))
+					.transform(upserted -> outcome, AppExecutors.getLightweightExecutor());
+			}, AppExecutors.getBackgroundExecutor());
+	}
+
+	private Result retryOrContinue() {
+		if (getRunAttemptCount() + 1 < ProvideDiagnosisKeysWorker.MAX_STAGE_ATTEMPTS) {
+			return Result.retry();
+		}
+		return Result.success();
+	}
+}
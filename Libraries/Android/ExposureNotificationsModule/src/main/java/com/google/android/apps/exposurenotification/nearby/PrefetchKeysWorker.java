@@ -0,0 +1,95 @@
+package com.google.android.apps.exposurenotification.nearby;
+
+import static com.google.android.apps.exposurenotification.nearby.ProvideDiagnosisKeysWorker.DEFAULT_API_TIMEOUT;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ListenableWorker;
+import androidx.work.NetworkType;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.WorkerParameters;
+
+import com.artech.base.services.Services;
+import com.genexus.exposurenotifications.ExposureNotificationsAPIOffline;
+import com.google.android.apps.exposurenotification.common.AppExecutors;
+import com.google.android.apps.exposurenotification.common.TaskToFutureAdapter;
+import com.google.android.apps.exposurenotification.network.DiagnosisKeys;
+import com.google.android.apps.exposurenotification.network.DownloadProgress;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prefetches diagnosis key files while the device is on an unmetered network and charging, so the
+ * next {@link ProvideDiagnosisKeysWorker} run provides them with no metered data, and quickly.
+ */
+public class PrefetchKeysWorker extends ListenableWorker {
+
+	private static final String TAG = "PrefetchKeysWorker";
+
+	public static final String WORKER_NAME = "PrefetchKeysWorker";
+
+	private final DiagnosisKeys diagnosisKeys;
+
+	public PrefetchKeysWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+		super(context, workerParams);
+		diagnosisKeys = new DiagnosisKeys(context);
+	}
+
+	@NonNull
+	@Override
+	public ListenableFuture<Result> startWork() {
+		Services.Log.debug(TAG, "Starting worker prefetching diagnosis key files.");
+		return FluentFuture.from(TaskToFutureAdapter
+			.getFutureWithTimeout(
+				ExposureNotificationClientWrapper.get(getApplicationContext()).isEnabled(),
+				DEFAULT_API_TIMEOUT.toMillis(),
+				TimeUnit.MILLISECONDS,
+				AppExecutors.getScheduledExecutor()))
+			.transformAsync(isEnabled -> {
+				// No use for the keys when the API is not enabled.
+				if (!isEnabled) {
+					return Futures.immediateFuture(null);
+				}
+				DownloadProgress progress = new DownloadProgress(p -> setProgressAsync(p.toData()));
+				return diagnosisKeys.prefetch(progress);
+			}, AppExecutors.getBackgroundExecutor())
+			.transform(done -> Result.success(), AppExecutors.getLightweightExecutor())
+			.catching(Exception.class, x -> {
+				// The next detection run downloads what's missing anyway.
+				Services.Log.error(TAG, "Failure to prefetch diagnosis keys", x);
+				return Result.failure();
+			}, AppExecutors.getBackgroundExecutor());
+	}
+
+	/**
+	 * Schedules the prefetch at the same interval as the detection, when on an unmetered network and
+	 * charging. Cancels it when prefetch is disabled, see {@link
+	 * DiagnosisKeyDownloadStorage#isPrefetchEnabled()}.
+	 */
+	public static void schedulePrefetch(Context context) {
+		WorkManager workManager = WorkManager.getInstance(context);
+		if (!DiagnosisKeyDownloadStorage.isPrefetchEnabled()) {
+			workManager.cancelUniqueWork(WORKER_NAME);
+			return;
+		}
+		int repeatInterval = ExposureNotificationsAPIOffline.getExposureDetectionMinInterval();
+		Services.Log.debug(" Schedule PrefetchKeys worker by " + repeatInterval + " minutes ");
+		PeriodicWorkRequest workRequest = new PeriodicWorkRequest.Builder(
+			PrefetchKeysWorker.class, repeatInterval, TimeUnit.MINUTES)
+			.addTag(WORKER_NAME)
+			.setConstraints(
+				new Constraints.Builder()
+					.setRequiresCharging(true)
+					.setRequiredNetworkType(NetworkType.UNMETERED)
+					.build())
+			.build();
+		workManager
+			.enqueueUniquePeriodicWork(WORKER_NAME, ExistingPeriodicWorkPolicy.REPLACE, workRequest);
+	}
+}
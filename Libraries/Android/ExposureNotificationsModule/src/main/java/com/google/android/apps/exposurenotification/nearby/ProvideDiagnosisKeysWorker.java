@@ -19,33 +19,32 @@ package com.google.android.apps.exposurenotification.nearby;
 
 import android.content.Context;
 import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
 import androidx.work.Constraints;
 import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
 import androidx.work.ListenableWorker;
 import androidx.work.NetworkType;
 import androidx.work.OneTimeWorkRequest;
 import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkInfo;
 import androidx.work.WorkManager;
 import androidx.work.WorkerParameters;
 
-import com.artech.application.MyApplication;
 import com.artech.base.services.Services;
 import com.genexus.exposurenotifications.ExposureNotificationsAPIOffline;
-import com.google.android.apps.exposurenotification.common.AppExecutors;
-import com.google.android.apps.exposurenotification.common.TaskToFutureAdapter;
-import com.google.android.apps.exposurenotification.network.DiagnosisKeys;
-import com.google.android.apps.exposurenotification.storage.TokenEntity;
-import com.google.android.apps.exposurenotification.storage.TokenRepository;
-import com.google.common.io.BaseEncoding;
-import com.google.common.util.concurrent.FluentFuture;
+import com.google.android.apps.exposurenotification.network.DownloadProgress;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import java.security.SecureRandom;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.threeten.bp.Duration;
 
 /**
- * Performs work to provide diagnosis keys to the exposure notifications API.
+ * Performs work to provide diagnosis keys to the exposure notifications API, by enqueuing a sync,
+ * see {@link #enqueueSync(Context)}.
  */
 public class ProvideDiagnosisKeysWorker extends ListenableWorker {
 
@@ -54,93 +53,59 @@ public class ProvideDiagnosisKeysWorker extends ListenableWorker {
   public static final Duration DEFAULT_API_TIMEOUT = Duration.ofSeconds(15);
 
   public static final String WORKER_NAME = "ProvideDiagnosisKeysWorker";
-  private static final BaseEncoding BASE64_LOWER = BaseEncoding.base64();
-  private static final int RANDOM_TOKEN_BYTE_LENGTH = 32;
-
-  private final DiagnosisKeys diagnosisKeys;
-  private final DiagnosisKeyFileSubmitter submitter;
-  private final SecureRandom secureRandom;
-  private final TokenRepository tokenRepository;
-
-	public static boolean sShouldRetry = true;
+  // Attempts of each stage of a sync, retried with backoff.
+  static final int MAX_STAGE_ATTEMPTS = 3;
+  private static final Duration STAGE_BACKOFF = Duration.ofMinutes(10);
+  private static final String SYNC_WORK_NAME = "DiagnosisKeysSync";
 
 	public ProvideDiagnosisKeysWorker(@NonNull Context context,
       @NonNull WorkerParameters workerParams) {
     super(context, workerParams);
-    diagnosisKeys = new DiagnosisKeys(context);
-    submitter = new DiagnosisKeyFileSubmitter(context);
-    secureRandom = new SecureRandom();
-    tokenRepository = new TokenRepository(context);
-  }
-
-  private String generateRandomToken() {
-    byte[] bytes = new byte[RANDOM_TOKEN_BYTE_LENGTH];
-    secureRandom.nextBytes(bytes);
-    return BASE64_LOWER.encode(bytes);
   }
 
   @NonNull
   @Override
-  @SuppressWarnings("deprecation")
   public ListenableFuture<Result> startWork() {
-	  Services.Log.debug(TAG, "Starting worker downloading diagnosis key files and submitting "
-        + "them to the API for exposure detection, then storing the token used.");
-    final String token = generateRandomToken();
-	  Services.Log.debug("startWork " + token);
-    return FluentFuture.from(TaskToFutureAdapter
-        .getFutureWithTimeout(
-            ExposureNotificationClientWrapper.get(getApplicationContext()).isEnabled(),
-            DEFAULT_API_TIMEOUT.toMillis(),
-            TimeUnit.MILLISECONDS,
-            AppExecutors.getScheduledExecutor()))
-        .transformAsync((isEnabled) -> {
-          // Only continue if it is enabled.
-          if (isEnabled) {
-            return diagnosisKeys.download();
-          } else {
-            // Stop here because things aren't enabled. Will still return successful though.
-            return Futures.immediateFailedFuture(new NotEnabledException());
-          }
-        }, AppExecutors.getBackgroundExecutor())
-        .transformAsync((batches) -> submitter.submitFiles(batches, token),
-            AppExecutors.getBackgroundExecutor())
-        .transformAsync(
-            done -> tokenRepository.upsertAsync(TokenEntity.create(token, false)),
-            AppExecutors.getBackgroundExecutor())
-        .transform(done -> Result.success(), AppExecutors.getLightweightExecutor())
-        .catching(NotEnabledException.class, x -> {
-          // Not enabled. Return as success.
-          return Result.success();
-        }, AppExecutors.getBackgroundExecutor())
-        .catching(Exception.class, x -> {
-			Services.Log.error(TAG, "Failure to provide diagnosis keys", x);
-
-			// TODO: consider a retry in X min again for N times?
-			Services.Log.debug(" failure to provide diagnosis keys , retry : " );
-			if (sShouldRetry) {
-				Services.Log.debug(" retry one more time in 10 minutes: ");
-				// Test download files to API
-				WorkManager workManager = WorkManager.getInstance(MyApplication.getInstance());
-				workManager.enqueue(new OneTimeWorkRequest.Builder(ProvideDiagnosisKeysWorker.class)
-					.setInitialDelay(10, TimeUnit.MINUTES)
-					.setConstraints(
-						new Constraints.Builder()
-							.setRequiresBatteryNotLow(true)
-							.setRequiredNetworkType(NetworkType.CONNECTED).build())
-					.build());
-				sShouldRetry = false;
-			}
-			return Result.failure();
+	  Services.Log.debug(TAG, "Starting worker enqueuing a diagnosis keys sync.");
+    enqueueSync(getApplicationContext());
+    return Futures.immediateFuture(Result.success());
+  }
 
-        }, AppExecutors.getBackgroundExecutor());
-    // TODO: consider a retry strategy
+  /**
+   * Enqueues a sync as two chained stages: {@link DownloadKeysWorker} downloads the key files to
+   * disk, providing each batch to the API as soon as it's there, then {@link SubmitKeysWorker}
+   * provides the ones left, e.g. that failed. Each stage is retried on its own, a submit retry
+   * reuses the files on disk and a download retry skips the ones already fetched.
+   *
+   * <p>A sync still pending or running is kept rather than started again.
+   */
+  public static void enqueueSync(Context context) {
+    OneTimeWorkRequest download = new OneTimeWorkRequest.Builder(DownloadKeysWorker.class)
+        .addTag(WORKER_NAME)
+        .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, STAGE_BACKOFF.toMillis(), TimeUnit.MILLISECONDS)
+        .setConstraints(
+            new Constraints.Builder()
+                .setRequiresBatteryNotLow(true)
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build())
+        .build();
+    // Providing the files on disk needs no network.
+    OneTimeWorkRequest submit = new OneTimeWorkRequest.Builder(SubmitKeysWorker.class)
+        .addTag(WORKER_NAME)
+        .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, STAGE_BACKOFF.toMillis(), TimeUnit.MILLISECONDS)
+        .build();
+    WorkManager.getInstance(context)
+        .beginUniqueWork(SYNC_WORK_NAME, ExistingWorkPolicy.KEEP, download)
+        .then(submit)
+        .enqueue();
   }
 
   /**
    * Schedules a job that runs once a day to fetch diagnosis keys from a server and to provide them
    * to the exposure notifications API.
    *
-   * <p>This job will only be run when idle, not low battery and with network connection.
+   * <p>This job will only be run when idle, not low battery and with network connection. The key
+   * files prefetched meanwhile by {@link PrefetchKeysWorker}, scheduled along, need no network.
    *
    * <p>  schedule the daily job
    */
@@ -151,6 +116,7 @@ public class ProvideDiagnosisKeysWorker extends ListenableWorker {
 		Services.Log.debug(" Schedule ProvideDiagnosisKeys worker by " + repeatInterval + " minutes ");
     PeriodicWorkRequest workRequest = new PeriodicWorkRequest.Builder(
         ProvideDiagnosisKeysWorker.class, repeatInterval, TimeUnit.MINUTES)
+        .addTag(WORKER_NAME)
         .setConstraints(
             new Constraints.Builder()
                 .setRequiresBatteryNotLow(true)
@@ -160,6 +126,7 @@ public class ProvideDiagnosisKeysWorker extends ListenableWorker {
         .build();
     workManager
         .enqueueUniquePeriodicWork(WORKER_NAME, ExistingPeriodicWorkPolicy.REPLACE, workRequest);
+    PrefetchKeysWorker.schedulePrefetch(context);
   }
 
 	public static void scheduleDailyProvideDiagnosisKeysWithDelay(Context context) {
@@ -169,6 +136,7 @@ public class ProvideDiagnosisKeysWorker extends ListenableWorker {
 		Services.Log.debug(" Schedule ProvideDiagnosisKeys worker by " + repeatInterval + " minutes with delay");
 		PeriodicWorkRequest workRequest = new PeriodicWorkRequest.Builder(
 			ProvideDiagnosisKeysWorker.class, repeatInterval, TimeUnit.MINUTES)
+			.addTag(WORKER_NAME)
 			.setConstraints(
 				new Constraints.Builder()
 					.setRequiresBatteryNotLow(true)
@@ -179,10 +147,25 @@ public class ProvideDiagnosisKeysWorker extends ListenableWorker {
 			.build();
 		workManager
 			.enqueueUniquePeriodicWork(WORKER_NAME, ExistingPeriodicWorkPolicy.REPLACE, workRequest);
+		PrefetchKeysWorker.schedulePrefetch(context);
 	}
 
-  private static class NotEnabledException extends Exception {
-
+  /**
+   * The progress of the running sync, as a JSON object with {@code running} set to false when no
+   * sync is running. Every request of this worker is tagged with {@link #WORKER_NAME}.
+   */
+  public static JSONObject getProgress(Context context) {
+    try {
+      for (WorkInfo info : WorkManager.getInstance(context).getWorkInfosByTag(WORKER_NAME).get()) {
+        if (info.getState() == WorkInfo.State.RUNNING) {
+          return DownloadProgress.toJson(info.getProgress()).put("running", true);
+        }
+      }
+      return new JSONObject().put("running", false);
+    } catch (ExecutionException | InterruptedException | JSONException e) {
+      Services.Log.error(TAG, "Error reading sync progress " + e.getMessage());
+      return new JSONObject();
+    }
   }
 
 }
@@ -0,0 +1,125 @@
+package com.google.android.apps.exposurenotification.nearby;
+
+import static com.google.android.apps.exposurenotification.nearby.ProvideDiagnosisKeysWorker.DEFAULT_API_TIMEOUT;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.work.ListenableWorker;
+import androidx.work.WorkerParameters;
+
+import com.artech.base.services.Services;
+import com.google.android.apps.exposurenotification.common.AppExecutors;
+import com.google.android.apps.exposurenotification.common.TaskToFutureAdapter;
+import com.google.android.apps.exposurenotification.network.DiagnosisKeys;
+import com.google.android.apps.exposurenotification.network.DownloadProgress;
+import com.google.android.apps.exposurenotification.network.DownloadResult;
+import com.google.android.apps.exposurenotification.storage.TokenEntity;
+import com.google.android.apps.exposurenotification.storage.TokenRepository;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Submit stage of a sync, see {@link ProvideDiagnosisKeysWorker#enqueueSync(Context)}: provides the
+ * key files left on disk by {@link DownloadKeysWorker} to the exposure notifications API, then
+ * stores the token used. The token of the download stage is reused when there's one.
+ *
+ * <p>It needs no network. Files of the batches that fail are kept, so a retry provides them again
+ * without downloading them.
+ */
+public class SubmitKeysWorker extends ListenableWorker {
+
+	private static final String TAG = "SubmitKeysWorker";
+
+	// Input of the stage, the token the download stage provided batches with.
+	static final String KEY_TOKEN = "token";
+
+	private static final BaseEncoding BASE64_LOWER = BaseEncoding.base64();
+	private static final int RANDOM_TOKEN_BYTE_LENGTH = 32;
+	private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+	private final DiagnosisKeys diagnosisKeys;
+	private final DiagnosisKeyFileSubmitter submitter;
+	private final TokenRepository tokenRepository;
+
+	public SubmitKeysWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+		super(context, workerParams);
+		diagnosisKeys = new DiagnosisKeys(context);
+		submitter = new DiagnosisKeyFileSubmitter(context);
+		tokenRepository = new TokenRepository(context);
+	}
+
+	static String generateRandomToken() {
+		byte[] bytes = new byte[RANDOM_TOKEN_BYTE_LENGTH];
+		SECURE_RANDOM.nextBytes(bytes);
+		return BASE64_LOWER.encode(bytes);
+	}
+
+	@NonNull
+	@Override
+	public ListenableFuture<Result> startWork() {
+		Services.Log.debug(TAG, "Starting worker submitting diagnosis key files to the API for exposure "
+			+ "detection, then storing the token used, attempt " + (getRunAttemptCount() + 1));
+		String inputToken = getInputData().getString(KEY_TOKEN);
+		final String token = inputToken != null ? inputToken : generateRandomToken();
+		return FluentFuture.from(TaskToFutureAdapter
+			.getFutureWithTimeout(
+				ExposureNotificationClientWrapper.get(getApplicationContext()).isEnabled(),
+				DEFAULT_API_TIMEOUT.toMillis(),
+				TimeUnit.MILLISECONDS,
+				AppExecutors.getScheduledExecutor()))
+			.transformAsync(isEnabled -> {
+				// Only continue if it is enabled.
+				if (!isEnabled) {
+					return Futures.immediateFailedFuture(new NotEnabledException());
+				}
+				DownloadProgress progress = new DownloadProgress(p -> setProgressAsync(p.toData()));
+				ListenableFuture<DownloadResult> allProvided = diagnosisKeys.provideStored(
+					batch -> submitter.submitBatch(batch, token, progress), progress);
+				submitter.recordExposureDetection(allProvided);
+				return allProvided;
+			}, AppExecutors.getBackgroundExecutor())
+			.transformAsync(result -> {
+				if (result.succeeded().isEmpty()) {
+					// Nothing was provided, so there's no token to keep.
+					if (result.isPartial()) {
+						Services.Log.warning(TAG, "All " + result.failed().size() + " batches failed to be provided.");
+						return Futures.immediateFuture(retryOrFail());
+					}
+					Services.Log.debug(TAG, "No diagnosis keys left to provide.");
+					return Futures.immediateFuture(Result.success());
+				}
+				// Keep the token of the batches provided, and retry the failed ones from disk.
+				Result done = Result.success();
+				if (result.isPartial()) {
+					Services.Log.warning(TAG, result.failed().size() + " batches failed, retrying them.");
+					done = retryOrFail();
+				}
+				Result outcome = done;
+				return FluentFuture.from(tokenRepository.upsertAsync(TokenEntity.create(token, false)))
+					.transform(upserted -> outcome, AppExecutors.getLightweightExecutor());
+			}, AppExecutors.getBackgroundExecutor())
+			.catching(NotEnabledException.class, x -> {
+				// Not enabled. Return as success.
+				return Result.success();
+			}, AppExecutors.getBackgroundExecutor())
+			.catching(Exception.class, x -> {
+				Services.Log.error(TAG, "Failure to provide diagnosis keys", x);
+				return retryOrFail();
+			}, AppExecutors.getBackgroundExecutor());
+	}
+
+	private Result retryOrFail() {
+		if (getRunAttemptCount() + 1 < ProvideDiagnosisKeysWorker.MAX_STAGE_ATTEMPTS) {
+			return Result.retry();
+		}
+		return Result.failure();
+	}
+
+	private static class NotEnabledException extends Exception {
+
+	}
+}
@@ -19,9 +19,14 @@ package com.google.android.apps.exposurenotification.network;
 
 import android.content.Context;
 import android.telephony.TelephonyManager;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 /**
  * Encapsulates the logic and persistence of ISO-Alpha-2 country codes used to shard Diagnosis Key
@@ -31,6 +36,10 @@ class CountryCodes {
   // TODO: This default is only to ease testing while development progresses. A production
   // implementation should not have such a default.
   private static final String DEFAULT_COUNTRY = "UY";
+  // Region whose key files are listed by the keys DP, see Uris.
+  static final String HOME_REGION = DEFAULT_COUNTRY;
+  private static final Splitter REGION_SPLITTER =
+      Splitter.on(',').trimResults().omitEmptyStrings();
 
   private final TelephonyManager telephonyManager;
 
@@ -42,9 +51,9 @@ class CountryCodes {
    * Returns a list of country codes covering the epidemiologically relevant past N days of the
    * user's possible exposure risk.
    *
-   * <p>This sample implementation returns only the current country code from the TelephonyManager,
-   * based on MCC. A production implementation might retain and return a list of the user's relevant
-   * country codes for the past N days.
+   * <p>The home region comes first, followed by the regions the user roamed to, see {@link
+   * DiagnosisKeyDownloadStorage#getRoamingRegions()}. The current country code from the
+   * TelephonyManager, based on MCC, is not used yet.
    */
   List<String> getExposureRelevantCountryCodes() {
     String countryCode = telephonyManager.getNetworkCountryIso().toUpperCase();
@@ -53,6 +62,11 @@ class CountryCodes {
     }
     // Using hard-coded default "UY" because it's required by our testing server.
     // Above TelephonyManager code retained for illustration and future use.
-    return ImmutableList.of(DEFAULT_COUNTRY);
+    Set<String> regions = new LinkedHashSet<>();
+    regions.add(HOME_REGION);
+    for (String region : REGION_SPLITTER.split(DiagnosisKeyDownloadStorage.getRoamingRegions())) {
+      regions.add(region.toUpperCase(Locale.ROOT));
+    }
+    return ImmutableList.copyOf(regions);
   }
 }
@@ -19,48 +19,51 @@ package com.google.android.apps.exposurenotification.network;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.concurrent.futures.CallbackToFutureAdapter;
+import com.android.volley.ClientError;
 import com.android.volley.DefaultRetryPolicy;
-import com.android.volley.NetworkResponse;
-import com.android.volley.Request;
-import com.android.volley.Response;
+import com.android.volley.Request.Method;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
 import com.android.volley.VolleyError;
-import com.android.volley.toolbox.HttpHeaderParser;
+import com.android.volley.toolbox.StringRequest;
 import com.artech.base.services.Services;
 import com.google.android.apps.exposurenotification.common.AppExecutors;
-import com.google.common.collect.ImmutableList;
+import com.google.android.apps.exposurenotification.network.DownloadPlanner.BudgetExceededException;
+import com.google.android.apps.exposurenotification.network.RequestQueueSingleton.TrafficClass;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
 import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FluentFuture;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import java.io.File;
 import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import org.apache.commons.io.FileUtils;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import org.checkerframework.checker.nullness.compatqual.NullableDecl;
 import org.threeten.bp.Duration;
 
 /**
  * A class to download all the files in a given batch of Diagnosis Key files.
  *
- * <p>This sample implementation focuses on demonstrating the server API and how to retrieve files
- * from it. It simply downloads all files available for the user's applicable regions every time it
- * is called. This does not address the different batching or interval strategies that a production
- * app might implement.
- *
- * <p>A production implementation should remember past keyfiles it has successfully downloaded and
- * provided to the EN API for matching, then skip those files in future. In production. each keyfile
- * need only be provided to the EN API once.
+ * <p>Batches already provided to the EN API for matching in a previous run are skipped by {@link
+ * Uris}, each keyfile need only be provided to the EN API once.
  */
 class DiagnosisKeyDownloader {
 
@@ -70,22 +73,39 @@ class DiagnosisKeyDownloader {
 
   private static final String FILE_PATTERN = "/diag_keys/%s/keys_%s.zip";
   private static final Duration DOWNLOAD_ALL_FILES_TIMEOUT = Duration.ofMinutes(30);
-	private static final String FILE_PATTERN_TEMP = "diag_keys";
 
   private static final Duration SINGLE_FILE_TIMEOUT = Duration.ofSeconds(30);
-  private static final int MAX_RETRIES = 3;
+  // Volley retries timeouts right away, the partial file is resumed by StreamingNetwork.
+  private static final int MAX_RETRIES = 1;
   private static final float RETRY_BACKOFF = 1.0f;
+  // Attempts per file, waiting an exponential backoff with jitter between them.
+  private static final int MAX_FILE_ATTEMPTS = 4;
+  private static final Duration FILE_RETRY_BASE_DELAY = Duration.ofSeconds(2);
+  // Hedged requests: a file slower than the observed p95 latency is requested a second time.
+  private static final String HEDGE_SUFFIX = ".hedge";
+  private static final int PREWARM_TIMEOUT_MS = 10000;
+  private static final int HEDGE_PERCENTILE = 95;
+  // Samples needed in this run to trust its p95, until then the one of the last run is used.
+  private static final int HEDGE_MIN_SAMPLES = 10;
+  // Never hedge sooner than this, a second request doesn't help fast files.
+  private static final Duration HEDGE_MIN_DELAY = Duration.ofSeconds(2);
 
   private final Context context;
   private final CountryCodes countries;
   private final Uris uris;
   private final RequestQueueWrapper queue;
+  private final RequestQueueWrapper probeQueue;
+  private final KeyFileStorageManager keyFileStorage;
+  private final PrefetchStore prefetchStore;
 
   DiagnosisKeyDownloader(Context context) {
     this.context = context;
     countries = new CountryCodes(context);
     uris = new Uris(context);
-    queue = RequestQueueWrapper.wrapping(RequestQueueSingleton.get(context));
+    queue = RequestQueueWrapper.forTraffic(context, TrafficClass.KEY_FILES);
+    probeQueue = RequestQueueWrapper.forTraffic(context, TrafficClass.INDEX);
+    keyFileStorage = new KeyFileStorageManager(context);
+    prefetchStore = new PrefetchStore(context);
   }
 
   DiagnosisKeyDownloader(
@@ -97,176 +117,676 @@ class DiagnosisKeyDownloader {
     this.countries = countries;
     this.uris = uris;
     this.queue = queue;
+    this.probeQueue = queue;
+    keyFileStorage = new KeyFileStorageManager(context);
+    prefetchStore = new PrefetchStore(context);
+  }
+
+  /**
+   * Downloads the batches not yet provided nor prefetched into the {@link PrefetchStore}, within
+   * its quota, for a later {@link #provideStored} to provide them with no network.
+   */
+  ListenableFuture<DownloadResult> prefetch(DownloadProgress progress) {
+    return downloadToStore(
+        progress, Math.min(keyFileStorage.headroomBytes(), prefetchStore.headroomBytes()), null);
   }
 
   /**
-   * Downloads all available files of Diagnosis Keys for the currently applicable regions and
-   * returns a future with a list of all the batches of files.
+   * Downloads the batches not yet provided nor stored into the {@link PrefetchStore}, handing each
+   * one over to {@code onStored} as soon as it's stored, while the others still download. A batch
+   * handed over is removed from the store, one that fails is left for {@link #provideStored}.
+   * Unlike {@link #prefetch}, only the key file quota applies.
    */
-  ListenableFuture<ImmutableList<KeyFileBatch>> download() {
-    String dir = randDirname();
+  ListenableFuture<DownloadResult> downloadToStore(
+      AsyncFunction<KeyFileBatch, ?> onStored, DownloadProgress progress) {
+    return downloadToStore(progress, keyFileStorage.headroomBytes(), onStored);
+  }
+
+  /**
+   * Hands the batches in the {@link PrefetchStore} over, with no network. Their files are reported
+   * to {@code progress} as planned.
+   */
+  ListenableFuture<DownloadResult> provideStored(
+      AsyncFunction<KeyFileBatch, ?> onBatchDownloaded, DownloadProgress progress) {
+    List<KeyFileBatch> stored = prefetchStore.batches();
+    Services.Log.debug(TAG, "Providing " + stored.size() + " stored batches.");
+    int storedFiles = 0;
+    for (KeyFileBatch b : stored) {
+      storedFiles += b.files().size();
+    }
+    progress.onPlanned(storedFiles);
+    return FluentFuture.from(providePrefetched(stored, onBatchDownloaded))
+        .transform(
+            result -> {
+              progress.complete();
+              return result;
+            },
+            AppExecutors.getLightweightExecutor());
+  }
 
-	  // cleanup app output keys folder, if exists.
-	  cleanAppTempDir();
+  private ListenableFuture<DownloadResult> downloadToStore(
+      DownloadProgress progress, long maxBytes, @Nullable AsyncFunction<KeyFileBatch, ?> onStored) {
+    return run(
+        batch -> {
+          KeyFileBatch stored = prefetchStore.put(batch);
+          if (stored == null || onStored == null) {
+            return Futures.immediateFuture(batch);
+          }
+          return FluentFuture.from(provideFromStore(stored, onStored))
+              .catching(
+                  Exception.class,
+                  e -> {
+                    // Downloaded all the same, it's provided from the store later.
+                    Services.Log.warning(TAG, "Stored batch not provided yet " + stored);
+                    return stored;
+                  },
+                  AppExecutors.getLightweightExecutor());
+        },
+        progress,
+        maxBytes);
+  }
 
+  /**
+   * Hands the prefetched batches over. Each is removed from the store once provided, a batch that
+   * fails is kept for the next attempt.
+   */
+  private ListenableFuture<DownloadResult> providePrefetched(
+      List<KeyFileBatch> stored, AsyncFunction<KeyFileBatch, ?> onBatchDownloaded) {
+    List<ListenableFuture<KeyFileBatch>> provided = new ArrayList<>();
+    for (KeyFileBatch b : stored) {
+      provided.add(provideFromStore(b, onBatchDownloaded));
+    }
+    return FluentFuture.from(Futures.successfulAsList(provided))
+        .transform(
+            results -> {
+              List<KeyFileBatch> succeeded = new ArrayList<>();
+              List<KeyFileBatch> failed = new ArrayList<>();
+              for (int i = 0; i < stored.size(); i++) {
+                if (results.get(i) != null) {
+                  succeeded.add(stored.get(i));
+                } else {
+                  Services.Log.warning(TAG, "Prefetched batch failed, left for the next run " + stored.get(i));
+                  failed.add(stored.get(i));
+                }
+              }
+              return DownloadResult.of(succeeded, failed);
+            },
+            AppExecutors.getLightweightExecutor());
+  }
 
-	  ListenableFuture<ImmutableList<KeyFileBatch>> batchesDownloaded =
+  /** Hands a stored batch over, and removes it from the store once provided. */
+  private ListenableFuture<KeyFileBatch> provideFromStore(
+      KeyFileBatch stored, AsyncFunction<KeyFileBatch, ?> onBatch) {
+    ListenableFuture<?> done;
+    try {
+      done = onBatch.apply(stored);
+    } catch (Exception e) {
+      done = Futures.immediateFailedFuture(e);
+    }
+    return FluentFuture.from(done)
+        .transform(
+            result -> {
+              prefetchStore.remove(stored);
+              return stored;
+            },
+            AppExecutors.getBackgroundExecutor());
+  }
+
+  /**
+   * Downloads all available files of Diagnosis Keys for the currently applicable regions, skipping
+   * the batches already in the {@link PrefetchStore}.
+   *
+   * <p>Each batch is handed to {@code onBatchDownloaded} as soon as all its files are on disk,
+   * without waiting for the other batches. Each file is retried with backoff on its own, and a
+   * batch that still fails doesn't fail the others: the returned {@link DownloadResult} tells the
+   * batches processed from the ones left for the next run.
+   *
+   * <p>Batches are downloaded newest first within the time and byte budget of the run, see {@link
+   * DownloadPlanner}. Files planned and downloaded are reported to {@code progress}.
+   */
+  private ListenableFuture<DownloadResult> run(
+      AsyncFunction<KeyFileBatch, ?> onBatchDownloaded, DownloadProgress progress, long maxBytes) {
+    String runName = randDirname();
+    DownloadMetrics metrics = new DownloadMetrics();
+    // Reclaim the space left by previous runs before planning this one.
+    keyFileStorage.startRun(runName, metrics);
+    DownloadRun run = new DownloadRun(
+        runName,
+        metrics,
+        progress,
+        KeyServerMirrors.fromResources(context),
+        DownloadPlanner.forActiveNetwork(context, maxBytes));
+
+	  ListenableFuture<DownloadResult> batchesDownloaded =
         // Start with the relevant country codes for the user.
         FluentFuture.from(uris.getDownloadFileUris(countries.getExposureRelevantCountryCodes()))
-            // Now initiate file downloads for each URI in each of those batches.
+            // Batches already in the prefetch store are either being provided or waiting to be.
+            .transform(this::skipPrefetched, AppExecutors.getBackgroundExecutor())
+            // Now initiate file downloads for each URI in each of those batches, handing over each
+            // batch as soon as it's complete.
+            .transformAsync(
+                uriBatches -> probeMirrors(uriBatches, run),
+                AppExecutors.getBackgroundExecutor())
             .transformAsync(
-                uriBatches -> initiateDownloads(uriBatches, dir),
+                uriBatches -> initiateDownloads(uriBatches, run, onBatchDownloaded),
                 AppExecutors.getBackgroundExecutor())
-            // Having completed all those downloads, group them back into batches for submission
-            // batch-by-batch to the Exposure Notifications API.
-            .transform(this::groupAsBatches, AppExecutors.getBackgroundExecutor())
-            // It's important to have a timeout since we're waiting for network operations that may
-            // or may not complete.
-            .withTimeout(
-                DOWNLOAD_ALL_FILES_TIMEOUT.toMillis(),
-                TimeUnit.MILLISECONDS,
-                AppExecutors.getScheduledExecutor());
+            .transform(
+                result -> {
+                  progress.complete();
+                  return result;
+                },
+                AppExecutors.getLightweightExecutor());
 
     // Add a callback just to log success/failure.
     Futures.addCallback(batchesDownloaded, logOutcome, AppExecutors.getLightweightExecutor());
+    // Remember how many concurrent downloads this device handled and how the run went, whatever
+    // the outcome.
+    batchesDownloaded.addListener(
+        () -> {
+          // Every batch was provided or failed by now, its files aren't needed anymore.
+          keyFileStorage.finishRun(run.dir, run.metrics);
+          run.concurrency.saveVerdict();
+          run.metrics.save();
+          run.mirrors.save();
+        },
+        AppExecutors.getBackgroundExecutor());
 
     return batchesDownloaded;
   }
 
+  private List<KeyFileBatch> skipPrefetched(List<KeyFileBatch> batches) {
+    List<KeyFileBatch> pending = new ArrayList<>();
+    for (KeyFileBatch b : batches) {
+      if (!prefetchStore.contains(b)) {
+        pending.add(b);
+      }
+    }
+    return pending;
+  }
 
-
-	private ListenableFuture<List<BatchFile>> initiateDownloads(
-      List<KeyFileBatch> batches, String dir) {
-    List<ListenableFuture<BatchFile>> batchFiles = new ArrayList<>();
+	private ListenableFuture<DownloadResult> initiateDownloads(
+      List<KeyFileBatch> batches, DownloadRun run, AsyncFunction<KeyFileBatch, ?> onBatchDownloaded) {
+    // Newest first, so a run cut short by its budget or the network still got the most valuable.
+    List<KeyFileBatch> planned = run.planner.plan(batches);
+    int plannedFiles = 0;
+    for (KeyFileBatch b : planned) {
+      plannedFiles += b.uris().size();
+    }
+    run.progress.onPlanned(plannedFiles);
+    List<ListenableFuture<KeyFileBatch>> processedBatches = new ArrayList<>();
     int fileCounter = 1;
-    for (KeyFileBatch b : batches) {
+    for (KeyFileBatch b : planned) {
+      List<ListenableFuture<File>> batchFiles = new ArrayList<>();
       for (Uri uri : b.uris()) {
-        batchFiles.add(downloadAndSave(b, uri, dir, fileCounter++));
+        String filename = String.format(FILE_PATTERN, run.dir, fileCounter++);
+        File toFile = new File(context.getFilesDir(), filename);
+        batchFiles.add(
+            FluentFuture.from(downloadFileWithRetry(uri, toFile, run))
+                .transform(
+                    file -> {
+                      run.progress.onFileDownloaded(file.length());
+                      return dropDuplicateContent(file, run.contentInRun);
+                    },
+                    AppExecutors.getBackgroundExecutor()));
       }
+      // Here's where, after downloading each file, we group them back into a KeyFileBatch.
+      processedBatches.add(
+          FluentFuture.from(Futures.allAsList(batchFiles))
+              .transformAsync(
+                  files -> {
+                    List<File> newFiles = new ArrayList<>();
+                    for (File f : files) {
+                      if (f != null) {
+                        newFiles.add(f);
+                      }
+                    }
+                    KeyFileBatch withFiles = b.copyWith(newFiles);
+                    if (newFiles.isEmpty()) {
+                      // Everything in the batch was already provided under other names.
+                      Services.Log.debug(TAG, "Batch with only duplicate content " + withFiles);
+                      DiagnosisKeyDownloadStorage.setBatchProvided(b.region(), b.batchNum());
+                      return Futures.immediateFuture(withFiles);
+                    }
+                    Services.Log.debug(TAG, "Batch downloaded " + withFiles);
+                    return FluentFuture.from(onBatchDownloaded.apply(withFiles))
+                        .transform(done -> withFiles, AppExecutors.getLightweightExecutor());
+                  },
+                  AppExecutors.getBackgroundExecutor())
+              // It's important to have a timeout since we're waiting for network operations that
+              // may or may not complete.
+              .withTimeout(
+                  DOWNLOAD_ALL_FILES_TIMEOUT.toMillis(),
+                  TimeUnit.MILLISECONDS,
+                  AppExecutors.getScheduledExecutor())
+              .catchingAsync(
+                  BudgetExceededException.class,
+                  e -> {
+                    run.deferred.add(b);
+                    return Futures.immediateFailedFuture(e);
+                  },
+                  AppExecutors.getLightweightExecutor()));
     }
-    return Futures.allAsList(batchFiles);
+    // A failed batch shows up as null here, the others are kept.
+    return FluentFuture.from(Futures.successfulAsList(processedBatches))
+        .transform(
+            processed -> {
+              List<KeyFileBatch> succeeded = new ArrayList<>();
+              List<KeyFileBatch> failed = new ArrayList<>();
+              List<KeyFileBatch> deferred = new ArrayList<>();
+              for (int i = 0; i < planned.size(); i++) {
+                KeyFileBatch b = processed.get(i);
+                // Either way, not in the provided batches ledger, so the next run downloads it again.
+                if (b != null) {
+                  succeeded.add(b);
+                } else if (run.deferred.contains(planned.get(i))) {
+                  deferred.add(planned.get(i));
+                } else {
+                  Services.Log.warning(TAG, "Batch failed, left for the next run " + planned.get(i));
+                  failed.add(planned.get(i));
+                }
+              }
+              if (!deferred.isEmpty()) {
+                Services.Log.debug(TAG, deferred.size() + " batches deferred, out of download budget.");
+              }
+              return DownloadResult.of(succeeded, failed, deferred);
+            },
+            AppExecutors.getLightweightExecutor());
   }
 
-  private ListenableFuture<BatchFile> downloadAndSave(
-      KeyFileBatch batch, Uri uri, String dir, int fileCounter) {
-    return FluentFuture.from(downloadFile(uri))
-        .transformAsync(
-            bytes -> saveKeyFile(batch, bytes, dir, fileCounter),
-            AppExecutors.getBackgroundExecutor());
+  /**
+   * Measures the mirrors with no recent stats before choosing where to download from, and opens
+   * connections to the others meanwhile. Only done when there are files to download, a run with
+   * nothing new sends no request to the key servers.
+   */
+  private ListenableFuture<List<KeyFileBatch>> probeMirrors(
+      List<KeyFileBatch> batches, DownloadRun run) {
+    if (batches.isEmpty() || batches.get(0).uris().isEmpty()) {
+      return Futures.immediateFuture(batches);
+    }
+    Uri sampleUri = batches.get(0).uris().get(0);
+    prewarmConnections(sampleUri, run.mirrors);
+    return FluentFuture.from(run.mirrors.probeStale(sampleUri, probeQueue))
+        .transform(probed -> batches, AppExecutors.getLightweightExecutor());
+  }
+
+  /**
+   * Opens connections to the origins not probed, kept alive in the connection pool for the run. A
+   * probe already opens one to its origin.
+   */
+  private void prewarmConnections(Uri sampleUri, KeyServerMirrors mirrors) {
+    List<Uri> candidates = mirrors.candidates(sampleUri);
+    for (Uri candidate : candidates) {
+      if (candidates.size() > 1 && mirrors.isStale(candidate)) {
+        continue;
+      }
+      StringRequest request = new StringRequest(Method.HEAD, candidate.toString(),
+          response -> Services.Log.debug(TAG, "Connection ready to " + candidate.getHost()),
+          err -> Services.Log.debug(TAG, "Could not prewarm " + candidate.getHost()));
+      request.setShouldCache(false);
+      request.setRetryPolicy(new DefaultRetryPolicy(PREWARM_TIMEOUT_MS, 0, RETRY_BACKOFF));
+      probeQueue.add(request);
+    }
+  }
+
+  /**
+   * Downloads a file, failing over to the next mirror when it fails and retrying it with
+   * exponential backoff and jitter once every mirror was tried. Client errors (4xx) are not
+   * retried on the same mirror, the file won't show up by asking again.
+   *
+   * <p>The transfer is shared with any other run downloading the same uri at the same time, see
+   * {@link InFlightDownloads}.
+   */
+  private ListenableFuture<File> downloadFileWithRetry(Uri uri, File toFile, DownloadRun run) {
+    return InFlightDownloads.download(
+        uri.toString(),
+        toFile,
+        KeyFileStorageManager.partialDir(context),
+        flightFile -> downloadFileWithRetry(run.mirrors.candidates(uri), uri, flightFile, run, 1));
+  }
+
+  private ListenableFuture<File> downloadFileWithRetry(
+      List<Uri> candidates, Uri uri, File toFile, DownloadRun run, int attempt) {
+    return FluentFuture.from(downloadFile(candidates, attempt - 1, uri, toFile, run))
+        .catchingAsync(
+            VolleyError.class,
+            err -> {
+              boolean untriedMirror = attempt < candidates.size();
+              if (attempt >= Math.max(MAX_FILE_ATTEMPTS, candidates.size())
+                  || (err instanceof ClientError && !untriedMirror)) {
+                throw err;
+              }
+              // Failing over to another mirror doesn't need to wait.
+              long delayMs = untriedMirror ? 0 : retryDelayMs(attempt);
+              Services.Log.debug(
+                  TAG, "Retrying keyfile " + uri + " in " + delayMs + "ms, attempt " + (attempt + 1));
+              run.metrics.fileRetries.incrementAndGet();
+              return Futures.scheduleAsync(
+                  () -> downloadFileWithRetry(candidates, uri, toFile, run, attempt + 1),
+                  delayMs,
+                  TimeUnit.MILLISECONDS,
+                  AppExecutors.getScheduledExecutor());
+            },
+            AppExecutors.getLightweightExecutor());
+  }
+
+  /** Base delay doubled for each attempt, spread between half and all of it. */
+  private static long retryDelayMs(int attempt) {
+    long backoffMs = FILE_RETRY_BASE_DELAY.toMillis() << (attempt - 1);
+    return backoffMs / 2 + (long) (RAND.nextDouble() * (backoffMs / 2));
+  }
+
+  /**
+   * Downloads a file from the candidate mirror at {@code index}, hedging slow downloads: when the
+   * file is still not there after the p95 latency observed, a second request for it is issued to
+   * the next mirror, the first one to finish wins and the other one is cancelled.
+   *
+   * <p>The wait is counted from when the request actually starts, as latencies are, not while it
+   * is queued behind the concurrency limit. Hedges skip ahead of the queued downloads, waiting
+   * behind them wouldn't shorten the tail. No hedge is issued when it would have to wait for a slot
+   * either, or take the only one.
+   *
+   * <p>Partial files are identified by the original uri, so they are resumed from any mirror.
+   */
+  private ListenableFuture<File> downloadFile(
+      List<Uri> candidates, int index, Uri uri, File toFile, DownloadRun run) {
+    Uri primaryUri = candidates.get(index % candidates.size());
+    Uri hedgeUri = candidates.get((index + 1) % candidates.size());
+    if (!run.isHedgingEnabled()) {
+      return requestFile(primaryUri, toFile, uri.toString(), run, null, null);
+    }
+
+    SettableFuture<File> first = SettableFuture.create();
+    List<ListenableFuture<File>> attempts = Collections.synchronizedList(new ArrayList<>());
+    AtomicReference<ListenableFuture<?>> hedgeTimer = new AtomicReference<>();
+    AtomicReference<ListenableFuture<File>> primary = new AtomicReference<>();
+    Runnable scheduleHedge =
+        () -> {
+          // Computed once started, so the p95 of this run is used as soon as there are samples.
+          long hedgeAfterMs = run.hedgeAfterMs();
+          if (hedgeAfterMs < 0 || first.isDone()) {
+            return;
+          }
+          hedgeTimer.set(
+              AppExecutors.getScheduledExecutor()
+                  .schedule(
+                      () -> {
+                        if (first.isDone() || !run.concurrency.hasSpareSlot()) {
+                          return;
+                        }
+                        Services.Log.debug(
+                            TAG, "Hedging slow keyfile " + uri + " after " + hedgeAfterMs + "ms");
+                        run.metrics.hedgesIssued.incrementAndGet();
+                        File hedgeFile = new File(toFile.getPath() + HEDGE_SUFFIX);
+                        ListenableFuture<File> hedge = requestFile(
+                            hedgeUri, hedgeFile, uri.toString() + HEDGE_SUFFIX, run, primary.get(), null);
+                        race(hedge, toFile, first, attempts, run);
+                        if (first.isDone()) {
+                          hedge.cancel(false);
+                        }
+                      },
+                      hedgeAfterMs,
+                      TimeUnit.MILLISECONDS));
+          if (first.isDone()) {
+            hedgeTimer.get().cancel(false);
+          }
+        };
+    primary.set(requestFile(primaryUri, toFile, uri.toString(), run, null, scheduleHedge));
+    race(primary.get(), null, first, attempts, run);
+    first.addListener(
+        () -> {
+          ListenableFuture<?> timer = hedgeTimer.get();
+          if (timer != null) {
+            timer.cancel(false);
+          }
+          // The loser isn't needed anymore.
+          synchronized (attempts) {
+            for (ListenableFuture<File> attempt : attempts) {
+              attempt.cancel(false);
+            }
+          }
+        },
+        AppExecutors.getLightweightExecutor());
+    return first;
+  }
+
+  /**
+   * Adds an attempt to the race for {@code first}: the first one to succeed sets it, an attempt
+   * that fails only fails it when no other attempt is still running. A winning hedge is moved to
+   * {@code moveTo}, where the file is expected.
+   */
+  private void race(
+      ListenableFuture<File> attempt,
+      @Nullable File moveTo,
+      SettableFuture<File> first,
+      List<ListenableFuture<File>> attempts,
+      DownloadRun run) {
+    attempts.add(attempt);
+    Futures.addCallback(
+        attempt,
+        new FutureCallback<File>() {
+          @Override
+          public void onSuccess(@NullableDecl File file) {
+            if (moveTo == null) {
+              first.set(file);
+              return;
+            }
+            if (first.isDone() || !file.renameTo(moveTo)) {
+              file.delete();
+              onFailure(new IOException("Hedged file not used " + file.getName()));
+              return;
+            }
+            if (first.set(moveTo)) {
+              Services.Log.debug(TAG, "Hedged request won for " + moveTo.getName());
+              run.metrics.hedgesWon.incrementAndGet();
+            }
+          }
+
+          @Override
+          public void onFailure(@NonNull Throwable t) {
+            synchronized (attempts) {
+              attempts.remove(attempt);
+              if (attempts.isEmpty()) {
+                first.setException(t);
+              }
+            }
+          }
+        },
+        AppExecutors.getLightweightExecutor());
   }
 
-  private ListenableFuture<byte[]> downloadFile(Uri uri) {
+  /**
+   * Requests a single file. Cancelling the returned future cancels the request, and frees its slot
+   * in the concurrency limit.
+   *
+   * @param hedged the request this one hedges, started ahead of the downloads waiting for a slot and
+   *     not at all once the hedged one succeeded
+   * @param onStart run when the request is actually sent, once it got a slot
+   */
+  private ListenableFuture<File> requestFile(
+      Uri uri,
+      File toFile,
+      String resumeKey,
+      DownloadRun run,
+      @Nullable ListenableFuture<File> hedged,
+      @Nullable Runnable onStart) {
+    DownloadConcurrencyController concurrency = run.concurrency;
     return CallbackToFutureAdapter.getFuture(
         completer -> {
-          Listener<byte[]> responseListener =
+          long[] startTime = new long[1];
+          AtomicBoolean started = new AtomicBoolean();
+          AtomicBoolean finished = new AtomicBoolean();
+          Listener<File> responseListener =
               response -> {
+                long latencyMs = SystemClock.elapsedRealtime() - startTime[0];
+                run.metrics.recordLatency(latencyMs);
+                run.metrics.bytesDownloaded.addAndGet(response.length());
+                run.planner.onDownloaded(response.length());
+                run.mirrors.recordSuccess(uri, latencyMs);
+                run.metrics.filesDownloaded.incrementAndGet();
 				  Services.Log.debug(
                     TAG,
-                    "Keyfile " + uri + " successfully downloaded " + response.length + " bytes.");
+                    "Keyfile " + uri + " successfully downloaded " + response.length() + " bytes.");
+                // Done before freeing the slot, which starts the next download: a hedge of this one
+                // must see it done.
                 completer.set(response);
+                if (finished.compareAndSet(false, true)) {
+                  concurrency.onSuccess(latencyMs);
+                }
               };
 
           ErrorListener errorListener =
               err -> {
+                if (finished.compareAndSet(false, true)) {
+                  concurrency.onFailure(err);
+                }
+                run.mirrors.recordFailure(uri);
 				  Services.Log.error(TAG, "Error getting keyfile " + uri + " " + err.getMessage());
 				  //Services.Log.error(TAG, "Error getting keyfile " + err..networkResponse.toString());
 				  //Services.Log.error(TAG, "Error getting keyfile " + err.getCause().toString());
-                completer.setCancelled();
+                completer.setException(err);
               };
 
           Services.Log.debug(TAG, "Downloading keyfile file from " + uri);
-          ByteArrayRequest request = new ByteArrayRequest(uri, responseListener, errorListener);
-          queue.add(request);
+          FileDownloadRequest request =
+              new FileDownloadRequest(uri, toFile, resumeKey, responseListener, errorListener);
+          request.setRetryPolicy(
+              new DefaultRetryPolicy((int) SINGLE_FILE_TIMEOUT.toMillis(), MAX_RETRIES, RETRY_BACKOFF));
+          completer.addCancellationListener(
+              () -> {
+                request.cancel();
+                // Volley doesn't deliver anything for a cancelled request.
+                if (started.get() && finished.compareAndSet(false, true)) {
+                  concurrency.onCancelled();
+                }
+              },
+              AppExecutors.getLightweightExecutor());
+          Runnable startDownload = () -> {
+            started.set(true);
+            if (request.isCanceled() || (hedged != null && succeeded(hedged))) {
+              if (finished.compareAndSet(false, true)) {
+                concurrency.onCancelled();
+              }
+              return;
+            }
+            if (!run.planner.hasBudget()) {
+              if (finished.compareAndSet(false, true)) {
+                concurrency.onCancelled();
+              }
+              completer.setException(new BudgetExceededException());
+              return;
+            }
+            startTime[0] = SystemClock.elapsedRealtime();
+            queue.add(request);
+            if (onStart != null) {
+              onStart.run();
+            }
+          };
+          if (hedged != null) {
+            concurrency.submitFirst(startDownload);
+          } else {
+            concurrency.submit(startDownload);
+          }
           return request;
         });
   }
 
-  private ListenableFuture<BatchFile> saveKeyFile(
-      KeyFileBatch batch, byte[] content, String dir, int fileCounter) {
-    String filename = String.format(FILE_PATTERN, dir, fileCounter);
-    File toFile = new File(context.getFilesDir(), filename);
+  private static boolean succeeded(ListenableFuture<?> future) {
+    if (!future.isDone()) {
+      return false;
+    }
     try {
-      FileUtils.writeByteArrayToFile(toFile, content);
-      return Futures.immediateFuture(new BatchFile(batch, toFile));
-    } catch (IOException e) {
-      return Futures.immediateFailedFuture(e);
+      Futures.getDone(future);
+      return true;
+    } catch (ExecutionException | CancellationException e) {
+      return false;
     }
   }
 
   /**
-   * Here's where, after downloading each file, we group them back into {@link KeyFileBatch}es.
+   * Names a downloaded file after its content, or deletes it and returns null when the same content
+   * was already provided to the API or downloaded in this run under another URL.
    */
-  private ImmutableList<KeyFileBatch> groupAsBatches(List<BatchFile> batchFiles) {
-    // Collect the downloaded files per KeyFileBatch
-    Map<KeyFileBatch, List<File>> collector = new HashMap<>();
-    for (BatchFile bf : batchFiles) {
-      if (!collector.containsKey(bf.batch)) {
-        collector.put(bf.batch, new ArrayList<>());
+  @Nullable
+  private static File dropDuplicateContent(File file, Set<String> contentInRun) {
+    String hash;
+    try {
+      hash = KeyFileContent.hash(file);
+      if (DiagnosisKeyDownloadStorage.isContentProvided(hash) || !contentInRun.add(hash)) {
+        Services.Log.debug(TAG, "Dropping duplicate content " + hash + " of " + file.getName());
+        file.delete();
+        return null;
       }
-		Services.Log.debug(" batch " + bf.batch.toString() + " file " + bf.file.getAbsolutePath());
-      collector.get(bf.batch).add(bf.file);
-    }
-    // And build them back into batches, this time with their files.
-    ImmutableList.Builder<KeyFileBatch> builder = ImmutableList.builder();
-    for (Map.Entry<KeyFileBatch, List<File>> e : collector.entrySet()) {
-      builder.add(e.getKey().copyWith(e.getValue()));
+      return KeyFileContent.nameByContent(file, hash);
+    } catch (IOException e) {
+      // The file was downloaded fine, provide it anyway. Under its download name, it won't be
+      // recorded as provided content.
+      Services.Log.error(TAG, "Error hashing " + file.getName() + " " + e.getMessage());
+      return file;
     }
-    return builder.build();
   }
 
-  private static String randDirname() {
-    byte[] bytes = new byte[8];
-    RAND.nextBytes(bytes);
-    return BASE32.encode(bytes);
-  }
-
-  /**
-   * A request for the raw bytes of a keyfile.
-   */
-  private static class ByteArrayRequest extends Request<byte[]> {
-
-    private final Response.Listener<byte[]> listener;
-
-    public ByteArrayRequest(
-        Uri uri, Response.Listener<byte[]> listener, ErrorListener errorListener) {
-      super(Method.GET, uri.toString(), errorListener);
-      this.listener = listener;
-      setRetryPolicy(
-          new DefaultRetryPolicy((int) SINGLE_FILE_TIMEOUT.toMillis(), MAX_RETRIES, RETRY_BACKOFF));
+  /** State shared by all the downloads of a single run. */
+  private static final class DownloadRun {
+    final String dir;
+    final DownloadConcurrencyController concurrency = new DownloadConcurrencyController();
+    final Set<String> contentInRun = Collections.synchronizedSet(new HashSet<>());
+    final DownloadMetrics metrics;
+    final DownloadProgress progress;
+    final KeyServerMirrors mirrors;
+    final DownloadPlanner planner;
+    // Batches not downloaded for lack of budget.
+    final Set<KeyFileBatch> deferred = Collections.synchronizedSet(new HashSet<>());
+    private final boolean hedgingEnabled = DiagnosisKeyDownloadStorage.isHedgingEnabled();
+    private final long lastRunP95Ms = DiagnosisKeyDownloadStorage.getKeyFileLatencyP95();
+
+    DownloadRun(
+        String dir,
+        DownloadMetrics metrics,
+        DownloadProgress progress,
+        KeyServerMirrors mirrors,
+        DownloadPlanner planner) {
+      this.dir = dir;
+      this.metrics = metrics;
+      this.progress = progress;
+      this.mirrors = mirrors;
+      this.planner = planner;
     }
 
-    @Override
-    protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
-      return response.statusCode < 400
-          ? Response.success(response.data, HttpHeaderParser.parseCacheHeaders(response))
-          : Response.error(new VolleyError(response));
+    boolean isHedgingEnabled() {
+      return hedgingEnabled;
     }
 
-    @Override
-    protected void deliverResponse(byte[] response) {
-      listener.onResponse(response);
+    /**
+     * How long to wait before hedging a download that just started, or -1 not to hedge it: the p95
+     * of this run once there are enough samples, else the one of the last run.
+     */
+    long hedgeAfterMs() {
+      if (!hedgingEnabled) {
+        return -1;
+      }
+      long p95Ms = metrics.latencySamples() >= HEDGE_MIN_SAMPLES
+          ? metrics.latencyPercentile(HEDGE_PERCENTILE)
+          : lastRunP95Ms;
+      return p95Ms < 0 ? -1 : Math.max(p95Ms, HEDGE_MIN_DELAY.toMillis());
     }
   }
 
-  /**
-   * A {@link File} that knows which {@link KeyFileBatch} it belongs to.
-   */
-  private static class BatchFile {
-
-    private final KeyFileBatch batch;
-    private final File file;
-
-    private BatchFile(KeyFileBatch batch, File file) {
-      this.batch = batch;
-      this.file = file;
-    }
+  private static String randDirname() {
+    byte[] bytes = new byte[8];
+    RAND.nextBytes(bytes);
+    return BASE32.encode(bytes);
   }
 
-  private static FutureCallback<ImmutableList<KeyFileBatch>> logOutcome =
-      new FutureCallback<ImmutableList<KeyFileBatch>>() {
+  private static FutureCallback<DownloadResult> logOutcome =
+      new FutureCallback<DownloadResult>() {
         @Override
-        public void onSuccess(@NullableDecl ImmutableList<KeyFileBatch> result) {
-          Log.i(TAG, "Key file download succeeded.");
+        public void onSuccess(@NullableDecl DownloadResult result) {
+          if (result != null && result.isPartial()) {
+            Log.w(TAG, "Key file download partially succeeded, " + result.failed().size()
+                + " of " + (result.failed().size() + result.succeeded().size()) + " batches failed.");
+          } else {
+            Log.i(TAG, "Key file download succeeded.");
+          }
         }
 
         @Override
@@ -275,22 +795,4 @@ class DiagnosisKeyDownloader {
         }
       };
 
-	private void cleanAppTempDir() {
-		// todo: cleanup app output keys folder, if exists.
-		File baseDir = context.getExternalFilesDir(null);
-		File subDir = new File(baseDir, FILE_PATTERN_TEMP);
-		if (subDir.exists() && subDir.isDirectory())
-		{
-			Services.Log.debug(" delete temp content from: " + subDir.getAbsolutePath() );
-			File[] filesTemp = subDir.listFiles();
-			if (filesTemp!=null)
-			{
-				for (File f : filesTemp) {
-					Services.Log.debug(" delete temp file " + f.getAbsolutePath());
-					f.delete();
-				}
-			}
-		}
-	}
-
 }
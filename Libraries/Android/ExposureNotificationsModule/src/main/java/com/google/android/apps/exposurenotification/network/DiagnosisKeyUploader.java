@@ -21,6 +21,8 @@ import android.content.Context;
 import android.net.Uri;
 import android.util.Log;
 import androidx.concurrent.futures.CallbackToFutureAdapter;
+import androidx.concurrent.futures.CallbackToFutureAdapter.Completer;
+import com.android.volley.AuthFailureError;
 import com.android.volley.DefaultRetryPolicy;
 import com.android.volley.NetworkResponse;
 import com.android.volley.ParseError;
@@ -30,16 +32,26 @@ import com.android.volley.Response.Listener;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.HttpHeaderParser;
 import com.android.volley.toolbox.JsonRequest;
+import com.genexus.exposurenotifications.R;
 import com.google.android.apps.exposurenotification.common.AppExecutors;
+import com.google.android.apps.exposurenotification.network.RequestQueueSingleton.TrafficClass;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.BaseEncoding;
 import com.google.common.util.concurrent.FluentFuture;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -85,12 +97,21 @@ public class DiagnosisKeyUploader {
   private final DeviceAttestor deviceAttestor;
   private final CountryCodes countryCodes;
   private final Uris uris;
+  private final RequestQueueWrapper queue;
+  // Set at build time for servers known to accept gzip bodies, else learned from their responses.
+  private final boolean gzipConfigured;
 
   DiagnosisKeyUploader(Context context) {
+    this(context, RequestQueueWrapper.forTraffic(context, TrafficClass.UPLOAD));
+  }
+
+  DiagnosisKeyUploader(Context context, RequestQueueWrapper queue) {
     this.context = context;
+    this.queue = queue;
     deviceAttestor = new DeviceAttestor(context);
     countryCodes = new CountryCodes(context);
     uris = new Uris(context);
+    gzipConfigured = context.getResources().getBoolean(R.bool.key_server_upload_gzip);
   }
 
   /**
@@ -246,31 +267,44 @@ public class DiagnosisKeyUploader {
   private ListenableFuture<List<Void>> submitToServers(List<KeySubmission> submissions) {
     List<ListenableFuture<Void>> submitted = new ArrayList<>();
     for (KeySubmission submission : submissions) {
+      boolean gzip = DiagnosisKeyDownloadStorage.isUploadCompressionEnabled()
+          && !DiagnosisKeyDownloadStorage.isUploadGzipRejected()
+          && (gzipConfigured || DiagnosisKeyDownloadStorage.isUploadGzipSupported());
       submitted.add(
-          CallbackToFutureAdapter.getFuture(
-              completer -> {
-                Listener<String> responseListener =
-                    response -> {
-                      Log.i(TAG, "Diagnosis Key upload succeeded.");
-                      completer.set(null);
-                    };
-
-                ErrorListener errorListener =
-                    err -> {
-                      Log.e(TAG, String.format("Diagnosis Key upload error: [%s]", err));
-                      completer.setCancelled();
-                    };
-
-                SubmitKeysRequest request =
-                    new SubmitKeysRequest(
-                        submission.uri, submission.payload, responseListener, errorListener);
-                RequestQueueSingleton.get(context).add(request);
-                return request;
-              }));
+          CallbackToFutureAdapter.getFuture(completer -> submit(submission, gzip, completer)));
     }
     return Futures.allAsList(submitted);
   }
 
+  private Object submit(KeySubmission submission, boolean gzip, Completer<Void> completer) {
+    Listener<String> responseListener =
+        response -> {
+          Log.i(TAG, "Diagnosis Key upload succeeded.");
+          completer.set(null);
+        };
+
+    ErrorListener errorListener =
+        err -> {
+          if (gzip
+              && err.networkResponse != null
+              && err.networkResponse.statusCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+            // The server doesn't accept compressed bodies, whatever the build said, send it as is.
+            Log.w(TAG, "Compressed Diagnosis Key upload rejected, retrying uncompressed.");
+            DiagnosisKeyDownloadStorage.setUploadGzipRejected(true);
+            submit(submission, false, completer);
+            return;
+          }
+          Log.e(TAG, String.format("Diagnosis Key upload error: [%s]", err));
+          completer.setCancelled();
+        };
+
+    SubmitKeysRequest request =
+        new SubmitKeysRequest(
+            submission.uri, submission.payload, gzip, responseListener, errorListener);
+    queue.add(request);
+    return request;
+  }
+
   /**
    * A private value class to help assembling the elements needed to upload keys to a given server.
    */
@@ -286,20 +320,64 @@ public class DiagnosisKeyUploader {
     private String verificationCode;
   }
 
-  /** Simple construction of a Diagnosis Keys submission. */
+  /**
+   * Simple construction of a Diagnosis Keys submission.
+   *
+   * <p>The body is gzipped when the build says the server accepts gzip request bodies, or the server
+   * advertised it with an Accept-Encoding response header (RFC 7694), unless it rejected one with a
+   * 415 since.
+   */
   private static class SubmitKeysRequest extends JsonRequest<String> {
 
+    private final boolean gzip;
+
     SubmitKeysRequest(
         Uri endpoint,
         JSONObject jsonRequest,
+        boolean gzip,
         Response.Listener<String> listener,
         Response.ErrorListener errorListener) {
       super(Method.POST, endpoint.toString(), jsonRequest.toString(), listener, errorListener);
+      this.gzip = gzip;
       setRetryPolicy(new DefaultRetryPolicy((int) TIMEOUT.toMillis(), MAX_RETRIES, RETRY_BACKOFF));
+      // Never answer an upload from the HTTP cache.
+      setShouldCache(false);
+    }
+
+    @Override
+    public byte[] getBody() {
+      byte[] body = super.getBody();
+      if (!gzip || body == null) {
+        return body;
+      }
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+      try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+        out.write(body);
+      } catch (IOException e) {
+        // Not expected writing to memory.
+        throw new IllegalStateException(e);
+      }
+      return compressed.toByteArray();
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+      if (!gzip) {
+        return super.getHeaders();
+      }
+      Map<String, String> headers = new HashMap<>(super.getHeaders());
+      headers.put(GzipHurlStack.HEADER_CONTENT_ENCODING, GzipHurlStack.GZIP);
+      return headers;
     }
 
     @Override
     protected Response<String> parseNetworkResponse(NetworkResponse response) {
+      String acceptEncoding =
+          response.headers == null ? null : response.headers.get(GzipHurlStack.HEADER_ACCEPT_ENCODING);
+      if (acceptEncoding != null && acceptEncoding.toLowerCase(Locale.ROOT).contains(GzipHurlStack.GZIP)) {
+        DiagnosisKeyDownloadStorage.setUploadGzipSupported(true);
+        DiagnosisKeyDownloadStorage.setUploadGzipRejected(false);
+      }
       try {
         String responseString =
             new String(response.data, HttpHeaderParser.parseCharset(response.headers, "utf-8"));
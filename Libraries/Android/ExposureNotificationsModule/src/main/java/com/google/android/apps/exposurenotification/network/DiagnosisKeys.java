@@ -22,6 +22,7 @@ import android.util.Log;
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences;
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences.NetworkMode;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.ListenableFuture;
 
 /**
@@ -66,14 +67,44 @@ public class DiagnosisKeys {
     }
   }
 
-  public ListenableFuture<ImmutableList<KeyFileBatch>> download() {
+  /**
+   * Download Diagnosis Keys files ahead of the next {@link #provideStored}, which then provides
+   * them with no network.
+   */
+  public ListenableFuture<DownloadResult> prefetch(DownloadProgress progress) {
     NetworkMode mode = preferences.getNetworkMode(NetworkMode.TEST);
     switch (mode) {
       case TEST:
         Log.d(TAG, "Using real: DiagnosisKeyDownloader");
-        return diagnosisKeyDownloader.download();
+        return diagnosisKeyDownloader.prefetch(progress);
       default:
         throw new IllegalArgumentException("Unsupported network mode: " + mode);
     }
   }
+
+  /**
+   * Download Diagnosis Keys files to disk, the download stage of a sync, handing each batch over to
+   * {@code onStored} as soon as it's there. Batches not handed over are left for {@link
+   * #provideStored}. Batches already downloaded are skipped, so a retry only fetches what's missing.
+   */
+  public ListenableFuture<DownloadResult> downloadToStore(
+      AsyncFunction<KeyFileBatch, ?> onStored, DownloadProgress progress) {
+    NetworkMode mode = preferences.getNetworkMode(NetworkMode.TEST);
+    switch (mode) {
+      case TEST:
+        Log.d(TAG, "Using real: DiagnosisKeyDownloader");
+        return diagnosisKeyDownloader.downloadToStore(onStored, progress);
+      default:
+        throw new IllegalArgumentException("Unsupported network mode: " + mode);
+    }
+  }
+
+  /**
+   * Hand the downloaded Diagnosis Keys files over to {@code onBatchDownloaded}, with no network, the
+   * submit stage of a sync. Batches that fail are kept on disk for a retry.
+   */
+  public ListenableFuture<DownloadResult> provideStored(
+      AsyncFunction<KeyFileBatch, ?> onBatchDownloaded, DownloadProgress progress) {
+    return diagnosisKeyDownloader.provideStored(onBatchDownloaded, progress);
+  }
 }
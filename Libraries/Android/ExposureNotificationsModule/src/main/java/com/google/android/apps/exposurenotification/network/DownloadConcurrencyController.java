@@ -0,0 +1,173 @@
+package com.google.android.apps.exposurenotification.network;
+
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.artech.base.services.Services;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLException;
+
+/**
+ * Decides how many key files are downloaded at the same time.
+ *
+ * <p>Parallel downloads over https fail in some devices, so a device starts with one download at a
+ * time and is allowed one more after a streak of fast, successful downloads. A timeout, server
+ * error or 429 halves the limit, other client errors (e.g. a 404) say nothing about the capacity.
+ * A TLS or socket failure drops it to one and marks the device as not supporting parallel
+ * downloads, a verdict remembered between runs and re-evaluated after a while.
+ */
+class DownloadConcurrencyController {
+
+	private static final String TAG = "DownloadConcurrency";
+
+	static final int MAX_CONCURRENCY = 4;
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+	// Latency under which a download counts as healthy to grow the limit.
+	private static final long HEALTHY_LATENCY_MS = TimeUnit.SECONDS.toMillis(10);
+	// How long a device is kept on serial downloads after a parallel download failure.
+	private static final long SERIAL_VERDICT_MS = TimeUnit.DAYS.toMillis(30);
+
+	private final Deque<Runnable> pending = new ArrayDeque<>();
+	private final int ceiling;
+	private int limit;
+	private int inFlight;
+	private int healthyStreak;
+
+	DownloadConcurrencyController() {
+		ceiling = maxConcurrency();
+		limit = Math.max(1, Math.min(ceiling, DiagnosisKeyDownloadStorage.getDownloadConcurrency()));
+	}
+
+	/**
+	 * The most downloads this device may run at the same time, according to its remembered verdict.
+	 * Used to size the request queue.
+	 */
+	static int maxConcurrency() {
+		long failedTimeStamp = DiagnosisKeyDownloadStorage.getParallelDownloadFailedTimeStamp();
+		boolean serialOnly = failedTimeStamp > 0
+			&& System.currentTimeMillis() - failedTimeStamp < SERIAL_VERDICT_MS;
+		return serialOnly ? 1 : MAX_CONCURRENCY;
+	}
+
+	/** Runs the download start as soon as the current limit allows it. */
+	void submit(Runnable startDownload) {
+		synchronized (this) {
+			pending.add(startDownload);
+		}
+		drain();
+	}
+
+	/**
+	 * Runs the download start as soon as the current limit allows it, before any download already
+	 * waiting. Used for hedges, which only help if they start while the slow download still runs.
+	 */
+	void submitFirst(Runnable startDownload) {
+		synchronized (this) {
+			pending.addFirst(startDownload);
+		}
+		drain();
+	}
+
+	/**
+	 * Whether a download would start right away, with the limit allowing parallel downloads. A hedge
+	 * is only worth it then: waiting for a slot, or taking the only one, it can't shorten the tail.
+	 */
+	synchronized boolean hasSpareSlot() {
+		return limit > 1 && inFlight < limit;
+	}
+
+	void onSuccess(long latencyMs) {
+		synchronized (this) {
+			inFlight--;
+			if (latencyMs <= HEALTHY_LATENCY_MS) {
+				healthyStreak++;
+				// Grow by one after as many healthy downloads as the current limit.
+				if (healthyStreak >= limit && limit < ceiling) {
+					limit++;
+					healthyStreak = 0;
+					Services.Log.debug(TAG, "Increasing concurrent downloads to " + limit);
+				}
+			} else {
+				healthyStreak = 0;
+			}
+		}
+		drain();
+	}
+
+	void onFailure(Throwable error) {
+		synchronized (this) {
+			inFlight--;
+			if (isConnectionFailure(error)) {
+				healthyStreak = 0;
+				if (inFlight > 0 || limit > 1) {
+					// Failed while downloading in parallel, remember it for this device.
+					Services.Log.warning(TAG, "Connection failure while downloading in parallel, going serial.");
+					DiagnosisKeyDownloadStorage.setParallelDownloadFailedTimeStamp(System.currentTimeMillis());
+				}
+				limit = 1;
+			} else if (isCapacityFailure(error)) {
+				healthyStreak = 0;
+				limit = Math.max(1, limit / 2);
+			}
+		}
+		drain();
+	}
+
+	/** A download that was cancelled before finishing, it doesn't say anything about the network. */
+	void onCancelled() {
+		synchronized (this) {
+			inFlight--;
+		}
+		drain();
+	}
+
+	/** Saves the limit reached in this run, the next run starts from there. */
+	synchronized void saveVerdict() {
+		DiagnosisKeyDownloadStorage.setDownloadConcurrency(limit);
+	}
+
+	private void drain() {
+		while (true) {
+			Runnable next;
+			synchronized (this) {
+				if (inFlight >= limit || pending.isEmpty()) {
+					return;
+				}
+				next = pending.poll();
+				inFlight++;
+			}
+			next.run();
+		}
+	}
+
+	/** A timeout, a server error or the server asking to slow down. */
+	private static boolean isCapacityFailure(Throwable error) {
+		for (Throwable t = error; t != null; t = t.getCause()) {
+			if (t instanceof TimeoutError || t instanceof SocketTimeoutException) {
+				return true;
+			}
+			if (t instanceof VolleyError && ((VolleyError) t).networkResponse != null) {
+				int statusCode = ((VolleyError) t).networkResponse.statusCode;
+				return statusCode >= 500 || statusCode == HTTP_TOO_MANY_REQUESTS;
+			}
+			if (t instanceof ServerError) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isConnectionFailure(Throwable error) {
+		for (Throwable t = error; t != null; t = t.getCause()) {
+			if (t instanceof SSLException || t instanceof SocketException) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,89 @@
+package com.google.android.apps.exposurenotification.network;
+
+import com.artech.base.services.Services;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters of a single diagnosis key download run.
+ *
+ * <p>The metrics of the last run are saved when it finishes, see {@link
+ * DiagnosisKeyDownloadStorage#getLastDownloadMetrics()}, to tune the download settings.
+ */
+class DownloadMetrics {
+
+	private static final String TAG = "DownloadMetrics";
+	// Latencies kept to estimate percentiles, the most recent ones win.
+	private static final int MAX_LATENCY_SAMPLES = 128;
+
+	final AtomicLong filesDownloaded = new AtomicLong();
+	final AtomicLong bytesDownloaded = new AtomicLong();
+	final AtomicLong fileRetries = new AtomicLong();
+	final AtomicLong hedgesIssued = new AtomicLong();
+	final AtomicLong hedgesWon = new AtomicLong();
+	final AtomicLong bytesReclaimed = new AtomicLong();
+
+	private final long[] latencies = new long[MAX_LATENCY_SAMPLES];
+	private int latencyCount;
+
+	// Connection counters at the start of the run.
+	private final long connectionsAtStart = MeteredSSLSocketFactory.connectionsOpened.get();
+	private final long sessionsResumedAtStart = MeteredSSLSocketFactory.sessionsResumed.get();
+
+	synchronized void recordLatency(long latencyMs) {
+		latencies[latencyCount % MAX_LATENCY_SAMPLES] = latencyMs;
+		latencyCount++;
+	}
+
+	synchronized int latencySamples() {
+		return Math.min(latencyCount, MAX_LATENCY_SAMPLES);
+	}
+
+	/** The given percentile of the latencies recorded, or -1 when none was. */
+	synchronized long latencyPercentile(int percentile) {
+		int samples = latencySamples();
+		if (samples == 0) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(latencies, samples);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * samples) - 1;
+		return sorted[Math.max(0, Math.min(samples - 1, index))];
+	}
+
+	JSONObject toJson() throws JSONException {
+		JSONObject json = new JSONObject();
+		json.put("files_downloaded", filesDownloaded.get());
+		json.put("bytes_downloaded", bytesDownloaded.get());
+		json.put("file_retries", fileRetries.get());
+		json.put("hedges_issued", hedgesIssued.get());
+		json.put("hedges_won", hedgesWon.get());
+		json.put("bytes_reclaimed", bytesReclaimed.get());
+		json.put("latency_p50_ms", latencyPercentile(50));
+		json.put("latency_p95_ms", latencyPercentile(95));
+		// Every connection opened means a TLS handshake, full unless its session was resumed.
+		json.put("connections_opened",
+			MeteredSSLSocketFactory.connectionsOpened.get() - connectionsAtStart);
+		json.put("tls_sessions_resumed",
+			MeteredSSLSocketFactory.sessionsResumed.get() - sessionsResumedAtStart);
+		return json;
+	}
+
+	/** Logs and saves these metrics as the ones of the last run. */
+	void save() {
+		try {
+			String metrics = toJson().toString();
+			Services.Log.debug(TAG, "Download metrics " + metrics);
+			DiagnosisKeyDownloadStorage.setLastDownloadMetrics(metrics);
+		} catch (JSONException e) {
+			Services.Log.error(TAG, "Error saving download metrics " + e.getMessage());
+		}
+		long p95 = latencyPercentile(95);
+		if (p95 >= 0) {
+			DiagnosisKeyDownloadStorage.setKeyFileLatencyP95(p95);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.google.android.apps.exposurenotification.network;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.SystemClock;
+import com.artech.base.services.Services;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plans the key file downloads of a run under a time and a byte budget.
+ *
+ * <p>Batches are downloaded newest first, the most valuable ones for matching. Once the run spends
+ * its budget no more files are started, and the batches left are deferred to the next run. The
+ * budgets are stricter on metered networks, see {@link DiagnosisKeyDownloadStorage}.
+ */
+class DownloadPlanner {
+
+	private static final String TAG = "DownloadPlanner";
+
+	private final long timeBudgetMs;
+	private final long byteBudget;
+	private final long startTime = SystemClock.elapsedRealtime();
+	private final AtomicLong bytesDownloaded = new AtomicLong();
+
+	DownloadPlanner(long timeBudgetMs, long byteBudget) {
+		this.timeBudgetMs = timeBudgetMs;
+		this.byteBudget = byteBudget;
+	}
+
+	/**
+	 * A planner with the budgets for the network the device is on now, downloading no more than
+	 * {@code maxBytes}.
+	 */
+	static DownloadPlanner forActiveNetwork(Context context, long maxBytes) {
+		ConnectivityManager connectivity =
+			(ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		boolean metered = connectivity == null || connectivity.isActiveNetworkMetered();
+		long timeBudgetMs = DiagnosisKeyDownloadStorage.getDownloadTimeBudget(metered);
+		long byteBudget = Math.min(maxBytes, DiagnosisKeyDownloadStorage.getDownloadByteBudget(metered));
+		Services.Log.debug(TAG, "Download budget " + timeBudgetMs + "ms, " + byteBudget + " bytes"
+			+ (metered ? " (metered)" : ""));
+		return new DownloadPlanner(timeBudgetMs, byteBudget);
+	}
+
+	/** The batches in download order, newest first. */
+	List<KeyFileBatch> plan(List<KeyFileBatch> batches) {
+		List<KeyFileBatch> planned = new ArrayList<>(batches);
+		// Batch numbers start with the timestamp of the batch.
+		Collections.sort(planned, (a, b) -> Long.compare(b.batchNum(), a.batchNum()));
+		return planned;
+	}
+
+	void onDownloaded(long bytes) {
+		bytesDownloaded.addAndGet(bytes);
+	}
+
+	/** Whether another file may be started in this run. */
+	boolean hasBudget() {
+		return bytesDownloaded.get() < byteBudget
+			&& SystemClock.elapsedRealtime() - startTime < timeBudgetMs;
+	}
+
+	/** A file that was not started because the run spent its budget. */
+	static class BudgetExceededException extends Exception {
+
+		BudgetExceededException() {
+			super("Download budget exceeded");
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.google.android.apps.exposurenotification.network;
+
+import android.os.SystemClock;
+import androidx.work.Data;
+import com.artech.base.services.Services;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Progress of a running sync: key files planned, downloaded and submitted to the API, bytes,
+ * throughput and estimated time left.
+ *
+ * <p>Fed by {@link DiagnosisKeyDownloader} and the key file submitter, and published to a {@link
+ * Listener} at most once per second, e.g. as WorkManager progress with {@link #toData()}. Each stage
+ * of a sync plans the files it handles, and publishes its final counts when done.
+ */
+public class DownloadProgress {
+
+	private static final String TAG = "DownloadProgress";
+	private static final long PUBLISH_INTERVAL_MS = 1000;
+	// Weight of the last sample in the throughput moving average.
+	private static final double THROUGHPUT_ALPHA = 0.3;
+
+	private static final String KEY_FILES_PLANNED = "files_planned";
+	private static final String KEY_FILES_DOWNLOADED = "files_downloaded";
+	private static final String KEY_FILES_SUBMITTED = "files_submitted";
+	private static final String KEY_BYTES_DOWNLOADED = "bytes_downloaded";
+	private static final String KEY_THROUGHPUT = "throughput_bytes_per_second";
+	private static final String KEY_ETA = "eta_seconds";
+	private static final String KEY_ELAPSED = "elapsed_seconds";
+
+	public interface Listener {
+		void onProgress(DownloadProgress progress);
+	}
+
+	private final Listener listener;
+	private final long startTime = SystemClock.elapsedRealtime();
+
+	private int filesPlanned;
+	private int filesDownloaded;
+	private int filesSubmitted;
+	private long bytesDownloaded;
+	private double throughput;
+	private long lastSampleTime = startTime;
+	private long lastPublishTime;
+
+	public DownloadProgress(Listener listener) {
+		this.listener = listener;
+	}
+
+	void onPlanned(int files) {
+		synchronized (this) {
+			filesPlanned += files;
+		}
+		publish(true);
+	}
+
+	void onFileDownloaded(long bytes) {
+		synchronized (this) {
+			filesDownloaded++;
+			bytesDownloaded += bytes;
+			long now = SystemClock.elapsedRealtime();
+			double sample = bytes * 1000.0 / Math.max(1, now - lastSampleTime);
+			throughput = throughput == 0
+				? sample
+				: THROUGHPUT_ALPHA * sample + (1 - THROUGHPUT_ALPHA) * throughput;
+			lastSampleTime = now;
+		}
+		publish(false);
+	}
+
+	public void onSubmitted(int files) {
+		synchronized (this) {
+			filesSubmitted += files;
+		}
+		publish(true);
+	}
+
+	/** Publishes the final counts, which the throttling may have held back. */
+	void complete() {
+		publish(true);
+	}
+
+	/** Seconds left to download the planned files at the current throughput, or -1 if unknown. */
+	synchronized long etaSeconds() {
+		if (filesDownloaded == 0 || throughput <= 0) {
+			return -1;
+		}
+		double bytesPerFile = (double) bytesDownloaded / filesDownloaded;
+		double bytesLeft = Math.max(0, filesPlanned - filesDownloaded) * bytesPerFile;
+		return Math.round(bytesLeft / throughput);
+	}
+
+	public synchronized Data toData() {
+		return new Data.Builder()
+			.putInt(KEY_FILES_PLANNED, filesPlanned)
+			.putInt(KEY_FILES_DOWNLOADED, filesDownloaded)
+			.putInt(KEY_FILES_SUBMITTED, filesSubmitted)
+			.putLong(KEY_BYTES_DOWNLOADED, bytesDownloaded)
+			.putLong(KEY_THROUGHPUT, Math.round(throughput))
+			.putLong(KEY_ETA, etaSeconds())
+			.putLong(KEY_ELAPSED, (SystemClock.elapsedRealtime() - startTime) / 1000)
+			.build();
+	}
+
+	/** The progress published as WorkManager {@link Data}, as a JSON object. */
+	public static JSONObject toJson(Data data) {
+		JSONObject json = new JSONObject();
+		try {
+			json.put(KEY_FILES_PLANNED, data.getInt(KEY_FILES_PLANNED, 0));
+			json.put(KEY_FILES_DOWNLOADED, data.getInt(KEY_FILES_DOWNLOADED, 0));
+			json.put(KEY_FILES_SUBMITTED, data.getInt(KEY_FILES_SUBMITTED, 0));
+			json.put(KEY_BYTES_DOWNLOADED, data.getLong(KEY_BYTES_DOWNLOADED, 0));
+			json.put(KEY_THROUGHPUT, data.getLong(KEY_THROUGHPUT, 0));
+			json.put(KEY_ETA, data.getLong(KEY_ETA, -1));
+			json.put(KEY_ELAPSED, data.getLong(KEY_ELAPSED, 0));
+		} catch (JSONException e) {
+			Services.Log.error(TAG, "Error writing progress " + e.getMessage());
+		}
+		return json;
+	}
+
+	private void publish(boolean force) {
+		synchronized (this) {
+			long now = SystemClock.elapsedRealtime();
+			if (!force && now - lastPublishTime < PUBLISH_INTERVAL_MS) {
+				return;
+			}
+			lastPublishTime = now;
+		}
+		listener.onProgress(this);
+	}
+}
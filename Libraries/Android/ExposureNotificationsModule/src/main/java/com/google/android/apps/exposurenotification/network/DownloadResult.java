@@ -0,0 +1,41 @@
+package com.google.android.apps.exposurenotification.network;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import java.util.Collection;
+
+/**
+ * The outcome of a diagnosis key download run, which may succeed for some batches only.
+ *
+ * <p>Batches are downloaded and provided independently; a failed batch doesn't prevent the others
+ * from being provided to the API, and is downloaded again in the next run.
+ */
+@AutoValue
+public abstract class DownloadResult {
+
+	/** Batches whose files were downloaded and processed successfully. */
+	public abstract ImmutableList<KeyFileBatch> succeeded();
+
+	/** Batches that could not be downloaded or processed in this run, with their URIs only. */
+	public abstract ImmutableList<KeyFileBatch> failed();
+
+	/** Batches left for the next run because this one spent its download budget. */
+	public abstract ImmutableList<KeyFileBatch> deferred();
+
+	public boolean isPartial() {
+		return !failed().isEmpty();
+	}
+
+	public static DownloadResult of(
+			Collection<KeyFileBatch> succeeded, Collection<KeyFileBatch> failed) {
+		return of(succeeded, failed, ImmutableList.of());
+	}
+
+	public static DownloadResult of(
+			Collection<KeyFileBatch> succeeded,
+			Collection<KeyFileBatch> failed,
+			Collection<KeyFileBatch> deferred) {
+		return new AutoValue_DownloadResult(
+			ImmutableList.copyOf(succeeded), ImmutableList.copyOf(failed), ImmutableList.copyOf(deferred));
+	}
+}
@@ -0,0 +1,68 @@
+package com.google.android.apps.exposurenotification.network;
+
+import android.net.Uri;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A request for a file that is written straight to disk while it is read from the network.
+ *
+ * <p>Only {@link StreamingNetwork} knows how to perform it; the response body never goes through
+ * the heap as a whole, so peak memory while downloading doesn't depend on the file size.
+ */
+class FileDownloadRequest extends Request<File> {
+
+	private final Listener<File> listener;
+	private final File toFile;
+	private final String resumeKey;
+
+	FileDownloadRequest(Uri uri, File toFile, Listener<File> listener, ErrorListener errorListener) {
+		this(uri, toFile, uri.toString(), listener, errorListener);
+	}
+
+	/**
+	 * A request whose partial file is identified by {@code resumeKey} instead of the url, for
+	 * concurrent requests of the same url.
+	 */
+	FileDownloadRequest(
+			Uri uri, File toFile, String resumeKey, Listener<File> listener, ErrorListener errorListener) {
+		super(Method.GET, uri.toString(), errorListener);
+		this.listener = listener;
+		this.toFile = toFile;
+		this.resumeKey = resumeKey;
+		// Kept out of Volley's cache, StreamingNetwork revalidates key files with its own KeyFileCache.
+		setShouldCache(false);
+	}
+
+	/** The file where the response body is written. */
+	File getFile() {
+		return toFile;
+	}
+
+	/** Identifies the partial file of this request, to resume it in a later attempt. */
+	String getResumeKey() {
+		return resumeKey;
+	}
+
+	@Override
+	public Map<String, String> getHeaders() {
+		// Byte ranges and lengths must refer to the file itself, not to a compressed encoding of it.
+		return Collections.singletonMap("Accept-Encoding", "identity");
+	}
+
+	@Override
+	protected Response<File> parseNetworkResponse(NetworkResponse response) {
+		return Response.success(toFile, null);
+	}
+
+	@Override
+	protected void deliverResponse(File response) {
+		listener.onResponse(response);
+	}
+}
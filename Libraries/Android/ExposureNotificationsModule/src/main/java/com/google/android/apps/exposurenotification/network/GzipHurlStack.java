@@ -0,0 +1,68 @@
+package com.google.android.apps.exposurenotification.network;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.Request;
+import com.android.volley.toolbox.HttpResponse;
+import com.android.volley.toolbox.HurlStack;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A {@link HurlStack} that asks for gzip responses and decompresses them transparently.
+ *
+ * <p>Index files and url lists grow with the key backlog and compress about 10x. The encoding is
+ * negotiated here rather than left to the platform HttpURLConnection, which only does it when the
+ * app sets no Accept-Encoding, so it holds whatever engine the stack runs on. Key files are zips
+ * and fetched by range, they are never requested through this stack.
+ */
+class GzipHurlStack extends HurlStack {
+
+	static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+	static final String HEADER_RANGE = "Range";
+	static final String GZIP = "gzip";
+	private static final String IDENTITY = "identity";
+	private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+
+	GzipHurlStack(SSLSocketFactory sslSocketFactory) {
+		super(null, sslSocketFactory);
+	}
+
+	@Override
+	public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders)
+		throws IOException, AuthFailureError {
+		Map<String, String> headers = new HashMap<>(additionalHeaders);
+		// A range is of the encoded body, ranges of the index are only valid on the identity encoding.
+		headers.put(HEADER_ACCEPT_ENCODING, request.getHeaders().containsKey(HEADER_RANGE) ? IDENTITY : GZIP);
+		HttpResponse response = super.executeRequest(request, headers);
+		if (response.getContent() == null || !isGzip(response.getHeaders())) {
+			return response;
+		}
+		// Callers see the decoded body, its length is unknown until read.
+		List<Header> decodedHeaders = new ArrayList<>();
+		for (Header header : response.getHeaders()) {
+			if (!header.getName().equalsIgnoreCase(HEADER_CONTENT_ENCODING)
+				&& !header.getName().equalsIgnoreCase(HEADER_CONTENT_LENGTH)) {
+				decodedHeaders.add(header);
+			}
+		}
+		return new HttpResponse(
+			response.getStatusCode(), decodedHeaders, -1, new GZIPInputStream(response.getContent()));
+	}
+
+	private static boolean isGzip(List<Header> headers) {
+		for (Header header : headers) {
+			if (header.getName().equalsIgnoreCase(HEADER_CONTENT_ENCODING)
+				&& header.getValue().trim().equalsIgnoreCase(GZIP)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
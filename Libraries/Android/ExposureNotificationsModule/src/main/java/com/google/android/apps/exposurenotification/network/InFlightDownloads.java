@@ -0,0 +1,168 @@
+package com.google.android.apps.exposurenotification.network;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import com.artech.base.services.Services;
+import com.google.android.apps.exposurenotification.common.AppExecutors;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process-wide registry of the key file downloads in flight, so runs that overlap, e.g. a sync and
+ * a prefetch, share a single transfer of the same url instead of each downloading it.
+ *
+ * <p>The first run asking for a url leads the transfer, to a file of the flight. Every consumer,
+ * the leader included, then gets a hard link to it at the path it expects, so the content is on disk
+ * once and each run can still delete its own files. The transfer is only cancelled when every
+ * consumer gave up on it.
+ *
+ * <p>Flight files are kept in a directory shared by all runs, not in the leader's run directory,
+ * which is deleted when the leader finishes even if others still wait for the transfer.
+ */
+final class InFlightDownloads {
+
+	private static final String TAG = "InFlightDownloads";
+	private static final String FLIGHT_SUFFIX = ".flight";
+
+	private static final Map<String, Flight> flights = new HashMap<>();
+	// Files of the flights not released yet, including those done and still being linked.
+	private static final Set<File> flightFiles = new HashSet<>();
+	private static long flightCount;
+
+	private InFlightDownloads() {
+	}
+
+	/**
+	 * Downloads {@code url} to {@code toFile}, joining the transfer already in flight for it if any.
+	 * Otherwise {@code transfer} is started, to download the url to a flight file in {@code
+	 * flightDir}.
+	 */
+	static ListenableFuture<File> download(
+			String url, File toFile, File flightDir, Function<File, ListenableFuture<File>> transfer) {
+		Flight flight;
+		boolean leader;
+		synchronized (flights) {
+			flight = flights.get(url);
+			leader = flight == null;
+			if (leader) {
+				// A new flight of the url may start while the consumers of the last one still link it.
+				String flightName =
+					Hashing.sha256().hashString(url, Charsets.UTF_8).toString() + "-" + (++flightCount);
+				flight = new Flight(new File(flightDir, flightName + FLIGHT_SUFFIX));
+				flights.put(url, flight);
+				flightFiles.add(flight.file);
+			}
+			flight.consumers++;
+		}
+		if (leader) {
+			start(url, flight, transfer);
+		} else {
+			Services.Log.debug(TAG, "Joining the download in flight of " + url);
+		}
+
+		Flight joined = flight;
+		ListenableFuture<File> linked =
+			FluentFuture.from(Futures.nonCancellationPropagating(joined.result))
+				.transform(file -> link(file, toFile), AppExecutors.getBackgroundExecutor());
+		linked.addListener(() -> release(joined), AppExecutors.getLightweightExecutor());
+		return linked;
+	}
+
+	/**
+	 * Whether a file belongs to a flight still running or in use by its consumers, the flight file
+	 * or one of its attempts, e.g. a hedge.
+	 */
+	static boolean inUse(File file) {
+		synchronized (flights) {
+			for (File flightFile : flightFiles) {
+				if (file.getName().startsWith(flightFile.getName())) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static void start(String url, Flight flight, Function<File, ListenableFuture<File>> transfer) {
+		ListenableFuture<File> transferred;
+		try {
+			transferred = transfer.apply(flight.file);
+		} catch (RuntimeException e) {
+			transferred = Futures.immediateFailedFuture(e);
+		}
+		synchronized (flights) {
+			flight.transfer = transferred;
+		}
+		ListenableFuture<File> done = transferred;
+		done.addListener(
+			() -> {
+				// Nobody joins a finished flight, a later run downloads the url again.
+				synchronized (flights) {
+					flights.remove(url);
+				}
+				flight.result.setFuture(done);
+			},
+			AppExecutors.getLightweightExecutor());
+	}
+
+	/** A consumer is done with the flight, the last one cleans it up. */
+	private static void release(Flight flight) {
+		boolean cancel;
+		synchronized (flights) {
+			flight.consumers--;
+			if (flight.consumers > 0) {
+				return;
+			}
+			flightFiles.remove(flight.file);
+			cancel = !flight.result.isDone();
+		}
+		if (cancel) {
+			// Every consumer gave up on it.
+			flight.transfer.cancel(false);
+		} else {
+			flight.file.delete();
+		}
+	}
+
+	private static File link(File file, File toFile) {
+		File parent = toFile.getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		toFile.delete();
+		try {
+			Os.link(file.getPath(), toFile.getPath());
+		} catch (ErrnoException e) {
+			// Hard links may not be supported, e.g. across filesystems.
+			try {
+				Files.copy(file, toFile);
+			} catch (IOException copyError) {
+				throw new IllegalStateException("Could not link " + toFile.getName(), copyError);
+			}
+		}
+		return toFile;
+	}
+
+	private static final class Flight {
+		final File file;
+		final SettableFuture<File> result = SettableFuture.create();
+		ListenableFuture<File> transfer;
+		int consumers;
+
+		Flight(File file) {
+			this.file = file;
+		}
+	}
+}
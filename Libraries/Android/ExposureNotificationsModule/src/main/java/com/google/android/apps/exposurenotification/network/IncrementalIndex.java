@@ -0,0 +1,273 @@
+package com.google.android.apps.exposurenotification.network;
+
+import android.net.Uri;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.artech.base.services.Services;
+import com.google.android.apps.exposurenotification.common.AppExecutors;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reads the index file of a region incrementally.
+ *
+ * <p>The index is append-only, so a cursor per region remembers the byte offset and the last line
+ * read, and only the tail after it is fetched with a Range request. The tail is requested from the
+ * start of the last line, which must still be there: when it isn't, the index was rewritten and it
+ * is fetched in full again. A server that doesn't honor the range sends the whole index, which is
+ * read as such.
+ *
+ * <p>The cursor also keeps the entries read but not provided yet, so they're listed until they are.
+ */
+class IncrementalIndex {
+
+	private static final String TAG = "IncrementalIndex";
+	private static final Splitter WHITESPACE_SPLITTER =
+		Splitter.onPattern("\\s+").trimResults().omitEmptyStrings();
+	private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes ([0-9]+)-[0-9]+/.*");
+
+	private static final String KEY_OFFSET = "offset";
+	private static final String KEY_LAST_LINE = "last_line";
+	private static final String KEY_ENTRIES = "entries";
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	private final RequestQueueWrapper queue;
+
+	IncrementalIndex(RequestQueueWrapper queue) {
+		this.queue = queue;
+	}
+
+	/**
+	 * The entries of the index of a region not provided yet, as listed in the index.
+	 *
+	 * @param isProvided tells the entries already provided, dropped from the cursor
+	 */
+	ListenableFuture<List<String>> entries(String region, Uri indexUri, Predicate<String> isProvided) {
+		JSONObject cursor = DiagnosisKeyDownloadStorage.getIndexCursor(region);
+		String lastLine = cursor.optString(KEY_LAST_LINE, "");
+		byte[] lastLineBytes = lastLine.getBytes(Charsets.UTF_8);
+		long offset = cursor.optLong(KEY_OFFSET, 0);
+		if (lastLine.isEmpty() || offset < lastLineBytes.length) {
+			return full(region, indexUri, isProvided);
+		}
+		long from = offset - lastLineBytes.length;
+		return FluentFuture.from(fetch(indexUri, from))
+			.transformAsync(
+				response -> {
+					if (response.statusCode != HttpURLConnection.HTTP_PARTIAL) {
+						// The range was ignored and the whole index sent, no need to fetch it again.
+						Services.Log.debug(TAG, "Range ignored, read the whole index of " + region);
+						return Futures.immediateFuture(
+							advance(region, new ArrayList<>(), response.data, 0, "", isProvided));
+					}
+					byte[] tail = tailOf(response, from, lastLineBytes);
+					if (tail == null) {
+						Services.Log.debug(TAG, "Index of " + region + " was rewritten, reading it in full.");
+						return full(region, indexUri, isProvided);
+					}
+					Services.Log.debug(TAG, "Read " + tail.length + " new bytes of the index of " + region);
+					List<String> entries = new ArrayList<>();
+					JSONArray pending = cursor.optJSONArray(KEY_ENTRIES);
+					for (int i = 0; pending != null && i < pending.length(); i++) {
+						entries.add(pending.optString(i));
+					}
+					return Futures.immediateFuture(
+						advance(region, entries, tail, offset, lastLine, isProvided));
+				},
+				AppExecutors.getBackgroundExecutor())
+			.catchingAsync(
+				VolleyError.class,
+				err -> {
+					if (err.networkResponse != null
+						&& err.networkResponse.statusCode == HTTP_RANGE_NOT_SATISFIABLE) {
+						// The index shrank, it was rewritten.
+						return full(region, indexUri, isProvided);
+					}
+					throw err;
+				},
+				AppExecutors.getLightweightExecutor());
+	}
+
+	private ListenableFuture<List<String>> full(
+		String region, Uri indexUri, Predicate<String> isProvided) {
+		return FluentFuture.from(fetch(indexUri, 0))
+			.transform(
+				response -> {
+					Services.Log.debug(TAG, "Read the " + response.data.length + " bytes of the index of " + region);
+					return advance(region, new ArrayList<>(), response.data, 0, "", isProvided);
+				},
+				AppExecutors.getBackgroundExecutor());
+	}
+
+	/**
+	 * The tail of the index after the last line read, from a partial response, or null when it is not
+	 * the tail expected, starting with that line.
+	 */
+	private static byte[] tailOf(IndexResponse response, long from, byte[] lastLine) {
+		Matcher m = response.contentRange == null ? null : CONTENT_RANGE_PATTERN.matcher(response.contentRange);
+		if (m == null || !m.matches() || Long.parseLong(m.group(1)) != from) {
+			return null;
+		}
+		byte[] data = response.data;
+		if (data.length < lastLine.length
+			|| !Arrays.equals(Arrays.copyOf(data, lastLine.length), lastLine)) {
+			return null;
+		}
+		// The last line must have been complete, the next one starts on a line of its own.
+		if (data.length > lastLine.length && !Character.isWhitespace(data[lastLine.length])) {
+			return null;
+		}
+		return Arrays.copyOfRange(data, lastLine.length, data.length);
+	}
+
+	/**
+	 * Adds the entries of the bytes read after {@code offset} and moves the cursor past them, keeping
+	 * the entries not provided yet.
+	 */
+	private static List<String> advance(
+		String region,
+		List<String> entries,
+		byte[] read,
+		long offset,
+		String lastLine,
+		Predicate<String> isProvided) {
+		// Lines are complete up to the last non whitespace byte, the index is written at once.
+		int end = read.length;
+		while (end > 0 && Character.isWhitespace(read[end - 1])) {
+			end--;
+		}
+		String newLines = new String(read, 0, end, Charsets.UTF_8);
+		Set<String> all = new LinkedHashSet<>(entries);
+		for (String entry : WHITESPACE_SPLITTER.split(newLines)) {
+			all.add(entry);
+			lastLine = entry;
+		}
+		List<String> pending = new ArrayList<>();
+		for (String entry : all) {
+			if (!isProvided.apply(entry)) {
+				pending.add(entry);
+			}
+		}
+
+		JSONObject cursor = new JSONObject();
+		try {
+			cursor.put(KEY_OFFSET, offset + end);
+			cursor.put(KEY_LAST_LINE, lastLine);
+			cursor.put(KEY_ENTRIES, new JSONArray(pending));
+		} catch (JSONException e) {
+			Services.Log.error(TAG, "Error writing index cursor " + e.getMessage());
+			return pending;
+		}
+		DiagnosisKeyDownloadStorage.setIndexCursor(region, cursor);
+		return Collections.unmodifiableList(pending);
+	}
+
+	private ListenableFuture<IndexResponse> fetch(Uri indexUri, long from) {
+		return CallbackToFutureAdapter.getFuture(
+			completer -> {
+				IndexRequest request = new IndexRequest(
+					indexUri.toString(),
+					from,
+					completer::set,
+					err -> {
+						Services.Log.error(TAG, "Error getting keyfile index " + indexUri);
+						completer.setException(err);
+					});
+				queue.add(request);
+				return request;
+			});
+	}
+
+	/** The index as read, in full or from a byte offset. */
+	private static class IndexResponse {
+		final int statusCode;
+		final byte[] data;
+		final String contentRange;
+
+		IndexResponse(int statusCode, byte[] data, String contentRange) {
+			this.statusCode = statusCode;
+			this.data = data;
+			this.contentRange = contentRange;
+		}
+	}
+
+	/**
+	 * Requests the index from a byte offset. Full reads are revalidated with the server through the
+	 * HTTP cache, ranges are never cached.
+	 */
+	private static class IndexRequest extends Request<IndexResponse> {
+
+		private final long from;
+		private final Response.Listener<IndexResponse> listener;
+
+		IndexRequest(
+			String url,
+			long from,
+			Response.Listener<IndexResponse> listener,
+			Response.ErrorListener errorListener) {
+			super(Method.GET, url, errorListener);
+			this.from = from;
+			this.listener = listener;
+			setShouldCache(from == 0);
+		}
+
+		@Override
+		public Map<String, String> getHeaders() {
+			if (from == 0) {
+				return Collections.emptyMap();
+			}
+			Map<String, String> headers = new HashMap<>();
+			headers.put(GzipHurlStack.HEADER_RANGE, "bytes=" + from + "-");
+			return headers;
+		}
+
+		@Override
+		protected Response<IndexResponse> parseNetworkResponse(NetworkResponse response) {
+			String contentRange = response.headers == null ? null : response.headers.get("Content-Range");
+			return Response.success(
+				new IndexResponse(response.statusCode, response.data, contentRange),
+				from == 0 ? revalidated(HttpHeaderParser.parseCacheHeaders(response)) : null);
+		}
+
+		/**
+		 * Volley serves a cache entry without asking the server until it expires, so entries are stored
+		 * expired: every read is a conditional GET, answered with a 304 when the index didn't change.
+		 */
+		private static Cache.Entry revalidated(Cache.Entry entry) {
+			if (entry != null) {
+				entry.softTtl = 0;
+				entry.ttl = 0;
+			}
+			return entry;
+		}
+
+		@Override
+		protected void deliverResponse(IndexResponse response) {
+			listener.onResponse(response);
+		}
+	}
+}
@@ -0,0 +1,404 @@
+package com.google.android.apps.exposurenotification.network;
+
+import com.google.common.base.Charsets;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Streaming reader of the TemporaryExposureKeyExport in a key file, the export.bin entry of the zip.
+ *
+ * <p>The protobuf is decoded by hand, straight from the inflated stream, so key files can be
+ * inspected on the device without a protobuf runtime nor loading them in memory. Keys are read
+ * through a single {@link Key} cursor, overwritten by each {@link #next()}, so iterating them
+ * allocates nothing per key: copy what's needed before moving on.
+ *
+ * <p>The header fields are read on open, up to the first key. Servers write them first, any found
+ * after the keys is only seen once iterated past.
+ */
+public final class KeyExportReader implements Closeable {
+
+	private static final String EXPORT_ENTRY = "export.bin";
+	private static final byte[] EXPORT_HEADER = "EK Export v1    ".getBytes(Charsets.US_ASCII);
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	// TemporaryExposureKeyExport fields.
+	private static final int FIELD_START_TIMESTAMP = 1;
+	private static final int FIELD_END_TIMESTAMP = 2;
+	private static final int FIELD_REGION = 3;
+	private static final int FIELD_BATCH_NUM = 4;
+	private static final int FIELD_BATCH_SIZE = 5;
+	private static final int FIELD_KEYS = 7;
+	private static final int FIELD_REVISED_KEYS = 8;
+
+	// TemporaryExposureKey fields.
+	private static final int FIELD_KEY_DATA = 1;
+	private static final int FIELD_TRANSMISSION_RISK_LEVEL = 2;
+	private static final int FIELD_ROLLING_START_INTERVAL_NUMBER = 3;
+	private static final int FIELD_ROLLING_PERIOD = 4;
+	private static final int FIELD_REPORT_TYPE = 5;
+	private static final int FIELD_DAYS_SINCE_ONSET_OF_SYMPTOMS = 6;
+
+	private static final int WIRE_VARINT = 0;
+	private static final int WIRE_FIXED64 = 1;
+	private static final int WIRE_LENGTH_DELIMITED = 2;
+	private static final int WIRE_FIXED32 = 5;
+
+	private final InputStream in;
+	private final Key key = new Key();
+	// Bytes of export.bin read so far, past its header.
+	private long position;
+	// Tag of a key field read while reading the header, not consumed yet.
+	private int pendingTag;
+
+	private long startTimestamp;
+	private long endTimestamp;
+	private String region = "";
+	private int batchNum;
+	private int batchSize;
+
+	private KeyExportReader(InputStream in) {
+		this.in = in;
+	}
+
+	/** Opens the export of a key file, reading its header fields. */
+	public static KeyExportReader open(File keyFile) throws IOException {
+		ZipInputStream zip = new ZipInputStream(new FileInputStream(keyFile));
+		try {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null && !EXPORT_ENTRY.equals(entry.getName())) {
+				// Skip export.sig.
+			}
+			if (entry == null) {
+				throw new IOException("No " + EXPORT_ENTRY + " in " + keyFile.getName());
+			}
+			KeyExportReader reader = new KeyExportReader(new BufferedInputStream(zip, BUFFER_SIZE));
+			reader.readHeader();
+			return reader;
+		} catch (IOException | RuntimeException e) {
+			zip.close();
+			throw e;
+		}
+	}
+
+	/** Start of the time window of the keys, in seconds since the epoch. */
+	public long startTimestamp() {
+		return startTimestamp;
+	}
+
+	/** End of the time window of the keys, in seconds since the epoch. */
+	public long endTimestamp() {
+		return endTimestamp;
+	}
+
+	/** The region of the keys, an ISO-Alpha-2 country code or the MCC. */
+	public String region() {
+		return region;
+	}
+
+	/** Number of this file in its batch, starting at 1. */
+	public int batchNum() {
+		return batchNum;
+	}
+
+	/** Number of files in the batch. */
+	public int batchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Moves the cursor to the next key, either a key or a revised key, skipping the other fields.
+	 * Returns false at the end of the export.
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			int tag = pendingTag != 0 ? pendingTag : readTag();
+			pendingTag = 0;
+			if (tag == 0) {
+				return false;
+			}
+			int field = tag >>> 3;
+			if ((field == FIELD_KEYS || field == FIELD_REVISED_KEYS) && (tag & 7) == WIRE_LENGTH_DELIMITED) {
+				readKey(field == FIELD_REVISED_KEYS);
+				return true;
+			}
+			readHeaderField(tag);
+		}
+	}
+
+	/** The key at the cursor, overwritten by the next call to {@link #next()}. */
+	public Key key() {
+		return key;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private void readHeader() throws IOException {
+		byte[] header = new byte[EXPORT_HEADER.length];
+		readFully(header, header.length);
+		if (!Arrays.equals(header, EXPORT_HEADER)) {
+			throw new IOException("Not a key export, header " + new String(header, Charsets.US_ASCII));
+		}
+		position = 0;
+		int tag;
+		while ((tag = readTag()) != 0) {
+			int field = tag >>> 3;
+			if (field == FIELD_KEYS || field == FIELD_REVISED_KEYS) {
+				pendingTag = tag;
+				return;
+			}
+			readHeaderField(tag);
+		}
+	}
+
+	private void readHeaderField(int tag) throws IOException {
+		switch (tag >>> 3) {
+			case FIELD_START_TIMESTAMP:
+				startTimestamp = readFixed64();
+				break;
+			case FIELD_END_TIMESTAMP:
+				endTimestamp = readFixed64();
+				break;
+			case FIELD_REGION:
+				byte[] bytes = new byte[readLength()];
+				readFully(bytes, bytes.length);
+				region = new String(bytes, Charsets.UTF_8);
+				break;
+			case FIELD_BATCH_NUM:
+				batchNum = (int) readVarint();
+				break;
+			case FIELD_BATCH_SIZE:
+				batchSize = (int) readVarint();
+				break;
+			default:
+				// Signature infos, or fields of a later version of the format.
+				skip(tag);
+		}
+	}
+
+	private void readKey(boolean revised) throws IOException {
+		int length = readLength();
+		long end = position + length;
+		key.reset(revised);
+		while (position < end) {
+			int tag = (int) readVarint();
+			switch (tag >>> 3) {
+				case FIELD_KEY_DATA:
+					int dataLength = readLength();
+					int read = Math.min(dataLength, key.data.length);
+					readFully(key.data, read);
+					skipBytes(dataLength - read);
+					key.dataLength = read;
+					break;
+				case FIELD_TRANSMISSION_RISK_LEVEL:
+					key.transmissionRiskLevel = (int) readVarint();
+					break;
+				case FIELD_ROLLING_START_INTERVAL_NUMBER:
+					key.rollingStartIntervalNumber = (int) readVarint();
+					break;
+				case FIELD_ROLLING_PERIOD:
+					key.rollingPeriod = (int) readVarint();
+					break;
+				case FIELD_REPORT_TYPE:
+					key.reportType = (int) readVarint();
+					break;
+				case FIELD_DAYS_SINCE_ONSET_OF_SYMPTOMS:
+					int zigZag = (int) readVarint();
+					key.daysSinceOnsetOfSymptoms = (zigZag >>> 1) ^ -(zigZag & 1);
+					break;
+				default:
+					skip(tag);
+			}
+		}
+		if (position != end) {
+			throw new IOException("Malformed key at " + position);
+		}
+	}
+
+	/** Reads a field tag, or 0 at the end of the export. */
+	private int readTag() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			return 0;
+		}
+		position++;
+		int tag = b & 0x7f;
+		for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+			if (shift > 28) {
+				throw new IOException("Malformed tag at " + position);
+			}
+			b = readByte();
+			tag |= (b & 0x7f) << shift;
+		}
+		if (tag >>> 3 == 0) {
+			throw new IOException("Invalid field 0 at " + position);
+		}
+		return tag;
+	}
+
+	private void skip(int tag) throws IOException {
+		switch (tag & 7) {
+			case WIRE_VARINT:
+				readVarint();
+				break;
+			case WIRE_FIXED64:
+				skipBytes(8);
+				break;
+			case WIRE_LENGTH_DELIMITED:
+				skipBytes(readLength());
+				break;
+			case WIRE_FIXED32:
+				skipBytes(4);
+				break;
+			default:
+				throw new IOException("Unsupported wire type " + (tag & 7) + " at " + position);
+		}
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint at " + position);
+	}
+
+	private long readFixed64() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 8) {
+			value |= (long) readByte() << shift;
+		}
+		return value;
+	}
+
+	private int readLength() throws IOException {
+		long length = readVarint();
+		if (length < 0 || length > Integer.MAX_VALUE) {
+			throw new IOException("Invalid length " + length + " at " + position);
+		}
+		return (int) length;
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Truncated export at " + position);
+		}
+		position++;
+		return b;
+	}
+
+	private void readFully(byte[] buffer, int length) throws IOException {
+		int offset = 0;
+		while (offset < length) {
+			int read = in.read(buffer, offset, length - offset);
+			if (read < 0) {
+				throw new EOFException("Truncated export at " + position);
+			}
+			offset += read;
+			position += read;
+		}
+	}
+
+	private void skipBytes(long length) throws IOException {
+		while (length > 0) {
+			long skipped = in.skip(length);
+			if (skipped <= 0) {
+				readByte();
+				skipped = 1;
+			} else {
+				position += skipped;
+			}
+			length -= skipped;
+		}
+	}
+
+	/**
+	 * A TemporaryExposureKey, as the cursor of a {@link KeyExportReader}. Its fields are only valid
+	 * until the reader moves to the next key.
+	 */
+	public static final class Key {
+		private static final int KEY_DATA_LENGTH = 16;
+		private static final int DEFAULT_ROLLING_PERIOD = 144;
+
+		private final byte[] data = new byte[KEY_DATA_LENGTH];
+		private int dataLength;
+		private int transmissionRiskLevel;
+		private int rollingStartIntervalNumber;
+		private int rollingPeriod;
+		private int reportType;
+		private int daysSinceOnsetOfSymptoms;
+		private boolean revised;
+
+		private Key() {
+		}
+
+		private void reset(boolean revised) {
+			this.revised = revised;
+			dataLength = 0;
+			transmissionRiskLevel = 0;
+			rollingStartIntervalNumber = 0;
+			rollingPeriod = DEFAULT_ROLLING_PERIOD;
+			reportType = 0;
+			daysSinceOnsetOfSymptoms = 0;
+		}
+
+		/**
+		 * The buffer holding the key data, its first {@link #dataLength()} bytes. Reused for every key.
+		 */
+		public byte[] data() {
+			return data;
+		}
+
+		/** Length of the key data, 16 for valid keys, longer data is truncated. */
+		public int dataLength() {
+			return dataLength;
+		}
+
+		/** Copies the key data out of the cursor. */
+		public byte[] copyData() {
+			return Arrays.copyOf(data, dataLength);
+		}
+
+		public int transmissionRiskLevel() {
+			return transmissionRiskLevel;
+		}
+
+		/** Start of the key validity, in 10 minute intervals since the epoch. */
+		public int rollingStartIntervalNumber() {
+			return rollingStartIntervalNumber;
+		}
+
+		/** Number of 10 minute intervals the key is valid for. */
+		public int rollingPeriod() {
+			return rollingPeriod;
+		}
+
+		public int reportType() {
+			return reportType;
+		}
+
+		public int daysSinceOnsetOfSymptoms() {
+			return daysSinceOnsetOfSymptoms;
+		}
+
+		/** Whether it was listed as a revised key, a previous key whose report type changed. */
+		public boolean isRevised() {
+			return revised;
+		}
+	}
+}
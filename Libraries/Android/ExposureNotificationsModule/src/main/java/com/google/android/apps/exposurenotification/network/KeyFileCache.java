@@ -0,0 +1,142 @@
+package com.google.android.apps.exposurenotification.network;
+
+import androidx.annotation.Nullable;
+import com.artech.base.services.Services;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A size-bounded disk cache of downloaded key files, with the validators (ETag, Last-Modified)
+ * needed to revalidate them with a conditional GET.
+ *
+ * <p>Entries are evicted least recently used first: the last modified time of the cached file is
+ * bumped on every hit.
+ */
+class KeyFileCache {
+
+	private static final String TAG = "KeyFileCache";
+	private static final String DATA_SUFFIX = ".data";
+	private static final String META_SUFFIX = ".meta";
+
+	private final File rootDir;
+	private final long maxBytes;
+
+	KeyFileCache(File rootDir, long maxBytes) {
+		this.rootDir = rootDir;
+		this.maxBytes = maxBytes;
+	}
+
+	/** A cached copy of a key file. */
+	static class Entry {
+		final File file;
+		@Nullable final String etag;
+		@Nullable final String lastModified;
+
+		private Entry(File file, @Nullable String etag, @Nullable String lastModified) {
+			this.file = file;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/** Returns the cached entry for the url, or null if there is none usable. */
+	@Nullable
+	synchronized Entry get(String url) {
+		String key = keyOf(url);
+		File data = new File(rootDir, key + DATA_SUFFIX);
+		File meta = new File(rootDir, key + META_SUFFIX);
+		if (!data.exists() || !meta.exists()) {
+			return null;
+		}
+		try {
+			List<String> validators = Files.readLines(meta, Charsets.UTF_8);
+			String etag = validators.size() > 0 ? Strings.emptyToNull(validators.get(0)) : null;
+			String lastModified = validators.size() > 1 ? Strings.emptyToNull(validators.get(1)) : null;
+			if (etag == null && lastModified == null) {
+				return null;
+			}
+			return new Entry(data, etag, lastModified);
+		} catch (IOException e) {
+			Services.Log.error(TAG, "Error reading cache entry " + key);
+			return null;
+		}
+	}
+
+	/** Copies a cached entry to the given file, marking it as recently used. */
+	synchronized void copyTo(Entry entry, File toFile) throws IOException {
+		File parent = toFile.getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		Files.copy(entry.file, toFile);
+		entry.file.setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Stores a copy of a downloaded file. Responses without any validator are not stored, they could
+	 * not be revalidated anyway.
+	 */
+	synchronized void put(String url, File file, @Nullable String etag, @Nullable String lastModified) {
+		if (etag == null && lastModified == null) {
+			return;
+		}
+		if (file.length() > maxBytes) {
+			return;
+		}
+		String key = keyOf(url);
+		try {
+			if (!rootDir.exists() && !rootDir.mkdirs()) {
+				return;
+			}
+			Files.copy(file, new File(rootDir, key + DATA_SUFFIX));
+			Files.asCharSink(new File(rootDir, key + META_SUFFIX), Charsets.UTF_8)
+				.write(Strings.nullToEmpty(etag) + "\n" + Strings.nullToEmpty(lastModified) + "\n");
+		} catch (IOException e) {
+			Services.Log.error(TAG, "Error writing cache entry " + key);
+			remove(key);
+			return;
+		}
+		trimToSize();
+	}
+
+	private void trimToSize() {
+		File[] files = rootDir.listFiles((dir, name) -> name.endsWith(DATA_SUFFIX));
+		if (files == null) {
+			return;
+		}
+		long total = 0;
+		for (File f : files) {
+			total += f.length();
+		}
+		if (total <= maxBytes) {
+			return;
+		}
+		List<File> byLastUse = new ArrayList<>(Arrays.asList(files));
+		Collections.sort(byLastUse, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+		for (File f : byLastUse) {
+			if (total <= maxBytes) {
+				break;
+			}
+			total -= f.length();
+			String name = f.getName();
+			remove(name.substring(0, name.length() - DATA_SUFFIX.length()));
+		}
+	}
+
+	private void remove(String key) {
+		new File(rootDir, key + DATA_SUFFIX).delete();
+		new File(rootDir, key + META_SUFFIX).delete();
+	}
+
+	private static String keyOf(String url) {
+		return Hashing.sha256().hashString(url, Charsets.UTF_8).toString();
+	}
+}
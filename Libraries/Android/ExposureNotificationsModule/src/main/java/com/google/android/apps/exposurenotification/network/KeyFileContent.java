@@ -0,0 +1,67 @@
+package com.google.android.apps.exposurenotification.network;
+
+import androidx.annotation.Nullable;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Content addressing of downloaded key files.
+ *
+ * <p>Once downloaded, a key file is renamed after the SHA-256 of its content, so the same export
+ * published under different URLs can be recognized, and the hash travels along with the file. The
+ * content is the inflated export.bin entry, not the zip: an export zipped again, e.g. when uploaded
+ * again to the CDN, has other entry timestamps or compression but the same keys.
+ */
+public final class KeyFileContent {
+
+	private static final String EXTENSION = "zip";
+	private static final String EXPORT_ENTRY = "export.bin";
+	private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+	private KeyFileContent() {
+		// Prevent instantiation.
+	}
+
+	/** The SHA-256 of the export.bin in the key file, as lower case hex. */
+	static String hash(File file) throws IOException {
+		try (ZipInputStream zip = new ZipInputStream(new FileInputStream(file))) {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				if (EXPORT_ENTRY.equals(entry.getName())) {
+					Hasher hasher = Hashing.sha256().newHasher();
+					ByteStreams.copy(zip, Funnels.asOutputStream(hasher));
+					return hasher.hash().toString();
+				}
+			}
+		}
+		throw new IOException("No " + EXPORT_ENTRY + " in " + file.getName());
+	}
+
+	/** Renames the file after its content hash, in the same directory. Returns the renamed file. */
+	static File nameByContent(File file, String hash) throws IOException {
+		File named = new File(file.getParentFile(), hash + "." + EXTENSION);
+		if (!named.equals(file) && !file.renameTo(named)) {
+			throw new IOException("Cannot rename " + file.getAbsolutePath());
+		}
+		return named;
+	}
+
+	/**
+	 * The content hash of a file previously named by {@link #nameByContent(File, String)}, or null if
+	 * it wasn't, e.g. when it couldn't be hashed.
+	 */
+	@Nullable
+	public static String hashOf(File namedFile) {
+		String name = Files.getNameWithoutExtension(namedFile.getName());
+		return HASH_PATTERN.matcher(name).matches() ? name : null;
+	}
+}
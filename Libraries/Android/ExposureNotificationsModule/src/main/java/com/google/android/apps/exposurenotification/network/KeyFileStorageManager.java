@@ -0,0 +1,154 @@
+package com.google.android.apps.exposurenotification.network;
+
+import android.content.Context;
+import com.artech.base.services.Services;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manages the disk space used by downloaded key files.
+ *
+ * <p>Each download run writes to its own directory under {@code diag_keys}, deleted when the run
+ * finishes whatever the outcome. Directories left by runs that never finished, e.g. because the
+ * process died, are swept when the next run starts. Batches downloaded ahead of their submission,
+ * see {@link PrefetchStore}, count against the same quota. Partial files kept to resume downloads are
+ * dropped when stale, or oldest first when the key files go over their disk quota.
+ */
+class KeyFileStorageManager {
+
+	private static final String TAG = "KeyFileStorage";
+
+	private static final String RUNS_DIR = "diag_keys";
+	private static final String PARTIAL_DIR = "diag_keys_partial";
+
+	// Partial files not resumed for this long are not worth keeping.
+	private static final long PARTIAL_MAX_AGE_MS = TimeUnit.DAYS.toMillis(3);
+	// Free space always left to the rest of the app.
+	private static final long FREE_SPACE_RESERVE_BYTES = 50 * 1024 * 1024;
+
+	// Runs in progress in this process, their directories are not orphans.
+	private static final Set<String> activeRuns = Collections.synchronizedSet(new HashSet<>());
+
+	private final File runsDir;
+	private final File partialDir;
+	private final File storeDir;
+
+	KeyFileStorageManager(Context context) {
+		runsDir = new File(context.getFilesDir(), RUNS_DIR);
+		partialDir = partialDir(context);
+		storeDir = PrefetchStore.dir(context);
+	}
+
+	/** Where partial files are kept between attempts. */
+	static File partialDir(Context context) {
+		return new File(context.getFilesDir(), PARTIAL_DIR);
+	}
+
+	/** Registers a run and reclaims the space left by previous ones. */
+	void startRun(String runName, DownloadMetrics metrics) {
+		activeRuns.add(runName);
+		long reclaimed = sweepOrphanRuns() + trimPartials();
+		if (reclaimed > 0) {
+			Services.Log.debug(TAG, "Reclaimed " + reclaimed + " bytes of key files.");
+			metrics.bytesReclaimed.addAndGet(reclaimed);
+		}
+	}
+
+	/** Deletes the directory of a finished run, whatever the outcome. */
+	void finishRun(String runName, DownloadMetrics metrics) {
+		activeRuns.remove(runName);
+		metrics.bytesReclaimed.addAndGet(delete(new File(runsDir, runName)));
+	}
+
+	/** The bytes a run may still download, within the quota and the free space. */
+	long headroomBytes() {
+		long quotaLeft = DiagnosisKeyDownloadStorage.getKeyFileQuotaBytes()
+			- sizeOf(runsDir) - sizeOf(partialDir) - sizeOf(storeDir);
+		long freeLeft = runsDir.getParentFile().getUsableSpace() - FREE_SPACE_RESERVE_BYTES;
+		return Math.max(0, Math.min(quotaLeft, freeLeft));
+	}
+
+	private long sweepOrphanRuns() {
+		long reclaimed = 0;
+		File[] runs = runsDir.listFiles();
+		if (runs != null) {
+			for (File run : runs) {
+				if (!activeRuns.contains(run.getName())) {
+					Services.Log.debug(TAG, "Sweeping orphan key files " + run.getName());
+					reclaimed += delete(run);
+				}
+			}
+		}
+		return reclaimed;
+	}
+
+	private long trimPartials() {
+		File[] files = partialDir.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		long reclaimed = 0;
+		long minLastModified = System.currentTimeMillis() - PARTIAL_MAX_AGE_MS;
+		List<File> kept = new ArrayList<>();
+		for (File f : files) {
+			if (InFlightDownloads.inUse(f) || StreamingNetwork.isActive(f)) {
+				// Still being downloaded, or linked into the runs waiting for it.
+				continue;
+			}
+			if (f.lastModified() < minLastModified) {
+				reclaimed += delete(f);
+			} else {
+				kept.add(f);
+			}
+		}
+		long excess = sizeOf(runsDir) + sizeOf(partialDir) + sizeOf(storeDir)
+			- DiagnosisKeyDownloadStorage.getKeyFileQuotaBytes();
+		if (excess > 0) {
+			// Oldest first, the newest ones are the most likely to be resumed.
+			Collections.sort(kept, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+			for (File f : kept) {
+				if (excess <= 0) {
+					break;
+				}
+				long deleted = delete(f);
+				excess -= deleted;
+				reclaimed += deleted;
+			}
+		}
+		return reclaimed;
+	}
+
+	/** Deletes a file or directory, returning the bytes freed. */
+	private static long delete(File file) {
+		long freed = 0;
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				freed += delete(child);
+			}
+		}
+		long length = file.isFile() ? file.length() : 0;
+		if (file.delete()) {
+			freed += length;
+		}
+		return freed;
+	}
+
+	private static long sizeOf(File file) {
+		File[] children = file.listFiles();
+		if (children == null) {
+			return file.isFile() ? file.length() : 0;
+		}
+		long size = 0;
+		for (File child : children) {
+			size += sizeOf(child);
+		}
+		return size;
+	}
+}
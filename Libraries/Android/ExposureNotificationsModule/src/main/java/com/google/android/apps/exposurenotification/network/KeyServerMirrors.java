@@ -0,0 +1,240 @@
+package com.google.android.apps.exposurenotification.network;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Request.Method;
+import com.android.volley.toolbox.StringRequest;
+import com.artech.base.services.Services;
+import com.genexus.exposurenotifications.R;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The origins that serve the key files, ranked by their measured health.
+ *
+ * <p>Mirrors are configured as a comma separated list of origins (scheme, host and port) in the
+ * {@code key_server_download_mirrors} resource, each serving the same paths as the host of the urls
+ * returned by the server. Every download feeds the latency and error rate of its origin, kept as
+ * moving averages between runs, and files are requested from the best healthy origin first,
+ * failing over to the next one.
+ */
+class KeyServerMirrors {
+
+	private static final String TAG = "KeyServerMirrors";
+	private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+	// Weight of the last sample in the moving averages.
+	private static final double EWMA_ALPHA = 0.3;
+	// Origins failing more often than this are only used after the healthy ones.
+	private static final double MAX_HEALTHY_ERROR_RATE = 0.5;
+	// Stats older than this are probed again before being trusted.
+	private static final long STATS_MAX_AGE_MS = TimeUnit.DAYS.toMillis(1);
+	private static final int PROBE_TIMEOUT_MS = 5000;
+
+	private static final String FIELD_LATENCY = "latency";
+	private static final String FIELD_ERROR_RATE = "error_rate";
+	private static final String FIELD_TIMESTAMP = "ts";
+
+	private final List<String> mirrors;
+	private final Map<String, Stats> stats = new LinkedHashMap<>();
+
+	private static class Stats {
+		double latencyMs;
+		double errorRate;
+		long timeStamp;
+	}
+
+	KeyServerMirrors(List<String> mirrors) {
+		this.mirrors = mirrors;
+		load();
+	}
+
+	static KeyServerMirrors fromResources(Context context) {
+		List<String> mirrors = new ArrayList<>();
+		for (String mirror : COMMA_SPLITTER.split(context.getString(R.string.key_server_download_mirrors))) {
+			mirrors.add(originOf(Uri.parse(mirror)));
+		}
+		return new KeyServerMirrors(mirrors);
+	}
+
+	/**
+	 * The uris to request a file from, best first: the origin of the uri itself along with the
+	 * mirrors, ranked by health.
+	 */
+	synchronized List<Uri> candidates(Uri uri) {
+		String own = originOf(uri);
+		List<String> origins = new ArrayList<>();
+		origins.add(own);
+		for (String mirror : mirrors) {
+			if (!origins.contains(mirror)) {
+				origins.add(mirror);
+			}
+		}
+		if (origins.size() == 1) {
+			return Collections.singletonList(uri);
+		}
+		// Stable sort, an origin without stats keeps its configured position.
+		Collections.sort(origins, this::compareHealth);
+		List<Uri> candidates = new ArrayList<>();
+		for (String origin : origins) {
+			candidates.add(withOrigin(uri, origin));
+		}
+		return candidates;
+	}
+
+	synchronized void recordSuccess(Uri uri, long latencyMs) {
+		record(originOf(uri), latencyMs, 0);
+	}
+
+	synchronized void recordFailure(Uri uri) {
+		record(originOf(uri), -1, 1);
+	}
+
+	/**
+	 * Probes the origins with missing or stale stats with a HEAD request for {@code sampleUri}. The
+	 * returned future never fails. With no mirror there's nothing to choose, nothing is probed.
+	 */
+	ListenableFuture<?> probeStale(Uri sampleUri, RequestQueueWrapper queue) {
+		List<Uri> candidates = candidates(sampleUri);
+		if (candidates.size() <= 1) {
+			return Futures.immediateFuture(null);
+		}
+		List<ListenableFuture<?>> probes = new ArrayList<>();
+		for (Uri candidate : candidates) {
+			if (isStale(candidate)) {
+				probes.add(probe(candidate, queue));
+			}
+		}
+		return Futures.successfulAsList(probes);
+	}
+
+	/** Whether the stats of the origin of {@code uri} are missing or too old to rank it. */
+	synchronized boolean isStale(Uri uri) {
+		Stats s = stats.get(originOf(uri));
+		return s == null || System.currentTimeMillis() - s.timeStamp > STATS_MAX_AGE_MS;
+	}
+
+	private ListenableFuture<Void> probe(Uri uri, RequestQueueWrapper queue) {
+		return CallbackToFutureAdapter.getFuture(
+			completer -> {
+				long startTime = SystemClock.elapsedRealtime();
+				StringRequest request = new StringRequest(Method.HEAD, uri.toString(),
+					response -> {
+						recordSuccess(uri, SystemClock.elapsedRealtime() - startTime);
+						completer.set(null);
+					},
+					err -> {
+						Services.Log.debug(TAG, "Probe failed for " + uri + " " + err.getMessage());
+						recordFailure(uri);
+						completer.set(null);
+					});
+				request.setShouldCache(false);
+				request.setRetryPolicy(new DefaultRetryPolicy(PROBE_TIMEOUT_MS, 0, 1.0f));
+				queue.add(request);
+				return request;
+			});
+	}
+
+	/** Saves the stats measured in this run. */
+	synchronized void save() {
+		JSONObject json = new JSONObject();
+		try {
+			for (Map.Entry<String, Stats> entry : stats.entrySet()) {
+				JSONObject s = new JSONObject();
+				s.put(FIELD_LATENCY, entry.getValue().latencyMs);
+				s.put(FIELD_ERROR_RATE, entry.getValue().errorRate);
+				s.put(FIELD_TIMESTAMP, entry.getValue().timeStamp);
+				json.put(entry.getKey(), s);
+			}
+		} catch (JSONException e) {
+			Services.Log.error(TAG, "Error saving mirror stats " + e.getMessage());
+			return;
+		}
+		Services.Log.debug(TAG, "Mirror stats " + json);
+		DiagnosisKeyDownloadStorage.setMirrorStats(json.toString());
+	}
+
+	private void load() {
+		String saved = DiagnosisKeyDownloadStorage.getMirrorStats();
+		if (Strings.isNullOrEmpty(saved)) {
+			return;
+		}
+		try {
+			JSONObject json = new JSONObject(saved);
+			Iterator<String> origins = json.keys();
+			while (origins.hasNext()) {
+				String origin = origins.next();
+				JSONObject s = json.optJSONObject(origin);
+				if (s != null) {
+					Stats loaded = new Stats();
+					loaded.latencyMs = s.optDouble(FIELD_LATENCY, 0);
+					loaded.errorRate = s.optDouble(FIELD_ERROR_RATE, 0);
+					loaded.timeStamp = s.optLong(FIELD_TIMESTAMP, 0);
+					stats.put(origin, loaded);
+				}
+			}
+		} catch (JSONException e) {
+			Services.Log.error(TAG, "Error reading mirror stats " + e.getMessage());
+		}
+	}
+
+	private void record(String origin, long latencyMs, int error) {
+		Stats s = stats.get(origin);
+		if (s == null) {
+			s = new Stats();
+			s.latencyMs = Math.max(0, latencyMs);
+			s.errorRate = error;
+			stats.put(origin, s);
+		} else {
+			if (latencyMs >= 0) {
+				s.latencyMs = EWMA_ALPHA * latencyMs + (1 - EWMA_ALPHA) * s.latencyMs;
+			}
+			s.errorRate = EWMA_ALPHA * error + (1 - EWMA_ALPHA) * s.errorRate;
+		}
+		s.timeStamp = System.currentTimeMillis();
+	}
+
+	/** Healthy origins go first, then the lowest latency weighted by the error rate. */
+	private int compareHealth(String a, String b) {
+		Stats sa = stats.get(a);
+		Stats sb = stats.get(b);
+		boolean unhealthyA = sa != null && sa.errorRate > MAX_HEALTHY_ERROR_RATE;
+		boolean unhealthyB = sb != null && sb.errorRate > MAX_HEALTHY_ERROR_RATE;
+		if (unhealthyA != unhealthyB) {
+			return unhealthyA ? 1 : -1;
+		}
+		return Double.compare(score(sa), score(sb));
+	}
+
+	private static double score(Stats s) {
+		// Not measured yet, worth a try.
+		return s == null ? 0 : s.latencyMs * (1 + s.errorRate);
+	}
+
+	private static String originOf(Uri uri) {
+		return uri.getScheme() + "://" + uri.getEncodedAuthority();
+	}
+
+	private static Uri withOrigin(Uri uri, String origin) {
+		Uri originUri = Uri.parse(origin);
+		return uri.buildUpon()
+			.scheme(originUri.getScheme())
+			.encodedAuthority(originUri.getEncodedAuthority())
+			.build();
+	}
+}
@@ -0,0 +1,98 @@
+package com.google.android.apps.exposurenotification.network;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The {@link SSLSocketFactory} of all our request queues.
+ *
+ * <p>A single instance is shared so that HttpURLConnection pools and keeps alive connections across
+ * queues, and TLS sessions are kept in a persistent {@link SSLSessionCache}, so the next run resumes
+ * them instead of doing full handshakes. It counts the connections opened and the sessions resumed,
+ * reported in {@link DownloadMetrics}.
+ */
+@SuppressWarnings("deprecation")
+class MeteredSSLSocketFactory extends SSLSocketFactory {
+
+	private static final int HANDSHAKE_TIMEOUT_MS = 15000;
+
+	static final AtomicLong connectionsOpened = new AtomicLong();
+	static final AtomicLong sessionsResumed = new AtomicLong();
+
+	private static MeteredSSLSocketFactory instance;
+
+	private final SSLSocketFactory delegate;
+
+	private MeteredSSLSocketFactory(SSLSocketFactory delegate) {
+		this.delegate = delegate;
+	}
+
+	static synchronized MeteredSSLSocketFactory get(Context context) {
+		if (instance == null) {
+			SSLSessionCache sessionCache = new SSLSessionCache(context.getApplicationContext());
+			instance = new MeteredSSLSocketFactory(
+				(SSLSocketFactory) SSLCertificateSocketFactory.getDefault(HANDSHAKE_TIMEOUT_MS, sessionCache));
+		}
+		return instance;
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		return delegate.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return delegate.getSupportedCipherSuites();
+	}
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+		return metered(delegate.createSocket(s, host, port, autoClose));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		return metered(delegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+			throws IOException {
+		return metered(delegate.createSocket(host, port, localHost, localPort));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return metered(delegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+			throws IOException {
+		return metered(delegate.createSocket(address, port, localAddress, localPort));
+	}
+
+	private static Socket metered(Socket socket) {
+		connectionsOpened.incrementAndGet();
+		if (socket instanceof SSLSocket) {
+			long createdTime = System.currentTimeMillis();
+			((SSLSocket) socket).addHandshakeCompletedListener(
+				(HandshakeCompletedEvent event) -> {
+					// A session created before this socket was resumed, not negotiated.
+					if (event.getSession().getCreationTime() < createdTime) {
+						sessionsResumed.incrementAndGet();
+					}
+				});
+		}
+		return socket;
+	}
+}
@@ -0,0 +1,194 @@
+package com.google.android.apps.exposurenotification.network;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+import com.artech.base.services.Services;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Key files downloaded ahead of their submission, kept until they're provided to the API without
+ * going to the network: prefetched while the device is on an unmetered network and charging, or
+ * downloaded by the download stage of a sync for its submit stage.
+ *
+ * <p>Each batch is a directory named after its region and batch number, moved in place only once
+ * all its files are there, so a batch in the store is always complete. Prefetches are bounded by
+ * {@link DiagnosisKeyDownloadStorage#getPrefetchQuotaBytes()}, the whole store by the key file quota.
+ * Batches already provided, or older than the exposure window, are dropped.
+ *
+ * <p>Every instance works on the same directory, so they share a process-wide lock. Files are moved
+ * into a batch outside of it, in a temporary directory that is not swept while the move runs.
+ */
+class PrefetchStore {
+
+	private static final String TAG = "PrefetchStore";
+
+	private static final String DIR = "diag_keys_prefetch";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final Pattern BATCH_DIR_PATTERN = Pattern.compile("([A-Z]+)-([0-9]+)");
+	// The server doesn't publish older keys anymore, nor are they relevant for matching.
+	private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(14);
+
+	private static final Object LOCK = new Object();
+	// Temporary directories of the puts running, guarded by LOCK.
+	private static final Set<String> activePuts = new HashSet<>();
+
+	private final File dir;
+
+	PrefetchStore(Context context) {
+		dir = dir(context);
+	}
+
+	static File dir(Context context) {
+		return new File(context.getFilesDir(), DIR);
+	}
+
+	/** The batches in the store, newest first, dropping the ones not needed anymore. */
+	List<KeyFileBatch> batches() {
+		synchronized (LOCK) {
+			return batchesLocked();
+		}
+	}
+
+	private List<KeyFileBatch> batchesLocked() {
+		List<KeyFileBatch> batches = new ArrayList<>();
+		File[] batchDirs = dir.listFiles();
+		if (batchDirs == null) {
+			return batches;
+		}
+		long minLastModified = System.currentTimeMillis() - MAX_AGE_MS;
+		for (File batchDir : batchDirs) {
+			if (activePuts.contains(batchDir.getName())) {
+				// Being filled by a put.
+				continue;
+			}
+			Matcher m = BATCH_DIR_PATTERN.matcher(batchDir.getName());
+			File[] files = batchDir.listFiles();
+			if (!m.matches() || files == null || files.length == 0) {
+				// Left by an interrupted put.
+				delete(batchDir);
+				continue;
+			}
+			String region = m.group(1);
+			long batchNum = Long.parseLong(m.group(2));
+			if (batchDir.lastModified() < minLastModified
+				|| DiagnosisKeyDownloadStorage.isBatchProvided(region, batchNum)) {
+				delete(batchDir);
+				continue;
+			}
+			Arrays.sort(files);
+			batches.add(KeyFileBatch.ofFiles(region, batchNum, files));
+		}
+		Collections.sort(batches, (a, b) -> Long.compare(b.batchNum(), a.batchNum()));
+		return batches;
+	}
+
+	/**
+	 * Moves the files of a downloaded batch into the store. Returns the batch with its files in the
+	 * store, or null when it was already there.
+	 */
+	@Nullable
+	KeyFileBatch put(KeyFileBatch batch) throws IOException {
+		File batchDir = batchDir(batch);
+		File tmpDir = new File(dir, batchDir.getName() + TMP_SUFFIX);
+		synchronized (LOCK) {
+			if (batchDir.exists() || activePuts.contains(tmpDir.getName())) {
+				// Already prefetched, or being, e.g. by a run that overlapped this one.
+				deleteFiles(batch);
+				return null;
+			}
+			activePuts.add(tmpDir.getName());
+		}
+		try {
+			delete(tmpDir);
+			if (!tmpDir.mkdirs()) {
+				throw new IOException("Could not create " + tmpDir);
+			}
+			for (File f : batch.files()) {
+				if (!f.renameTo(new File(tmpDir, f.getName()))) {
+					delete(tmpDir);
+					throw new IOException("Could not move " + f.getName() + " to the prefetch store");
+				}
+			}
+			synchronized (LOCK) {
+				if (!tmpDir.renameTo(batchDir)) {
+					delete(tmpDir);
+					throw new IOException("Could not store " + batchDir.getName());
+				}
+			}
+		} finally {
+			synchronized (LOCK) {
+				activePuts.remove(tmpDir.getName());
+			}
+		}
+		Services.Log.debug(TAG, "Prefetched " + batch);
+		List<File> stored = new ArrayList<>();
+		for (File f : batch.files()) {
+			stored.add(new File(batchDir, f.getName()));
+		}
+		return batch.copyWith(stored);
+	}
+
+	/** Whether the files of a batch are in the store. */
+	boolean contains(KeyFileBatch batch) {
+		synchronized (LOCK) {
+			return batchDir(batch).isDirectory();
+		}
+	}
+
+	/** Removes a batch once provided. */
+	void remove(KeyFileBatch batch) {
+		synchronized (LOCK) {
+			delete(batchDir(batch));
+		}
+	}
+
+	/** The bytes that can still be prefetched. */
+	long headroomBytes() {
+		synchronized (LOCK) {
+			return Math.max(0, DiagnosisKeyDownloadStorage.getPrefetchQuotaBytes() - sizeOf(dir));
+		}
+	}
+
+	private File batchDir(KeyFileBatch batch) {
+		return new File(dir, batch.region() + "-" + batch.batchNum());
+	}
+
+	private static void deleteFiles(KeyFileBatch batch) {
+		for (File f : batch.files()) {
+			f.delete();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static long sizeOf(File file) {
+		File[] children = file.listFiles();
+		if (children == null) {
+			return file.isFile() ? file.length() : 0;
+		}
+		long size = 0;
+		for (File child : children) {
+			size += sizeOf(child);
+		}
+		return size;
+	}
+}
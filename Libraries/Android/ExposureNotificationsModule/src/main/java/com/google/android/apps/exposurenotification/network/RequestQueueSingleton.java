@@ -18,27 +18,93 @@
 package com.google.android.apps.exposurenotification.network;
 
 import android.content.Context;
+import com.android.volley.Cache;
+import com.android.volley.ExecutorDelivery;
 import com.android.volley.RequestQueue;
 import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
 import com.android.volley.toolbox.HurlStack;
 import com.android.volley.toolbox.NoCache;
+import com.google.android.apps.exposurenotification.common.AppExecutors;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
+import java.io.File;
+import java.util.EnumMap;
+import java.util.Map;
 
 /**
- * Holder for a singleton or Volley's {@link com.android.volley.RequestQueue}.
+ * Holder for Volley's {@link com.android.volley.RequestQueue}s, one per {@link TrafficClass}.
+ *
+ * <p>Each traffic class has its own dispatcher threads, so a key upload or an index lookup never
+ * waits behind a backlog of key file downloads.
  */
 public class RequestQueueSingleton {
 
-  private static RequestQueue queue;
-	private	static int maxSerialThreadPoolSize = 1;
+  /** Kinds of traffic, from the most to the least latency sensitive. */
+  public enum TrafficClass {
+    /** Diagnosis key uploads of a positive user. */
+    UPLOAD,
+    /** Index and key file url lookups. */
+    INDEX,
+    /** Bulk key file downloads. */
+    KEY_FILES
+  }
+
+  private static final Map<TrafficClass, RequestQueue> queues = new EnumMap<>(TrafficClass.class);
 
-  public static RequestQueue get(Context context) {
+	private static final String INDEX_CACHE_DIR = "volley_index";
+	private static final int INDEX_CACHE_MAX_BYTES = 1024 * 1024;
+	// Index files of every region are fetched at the same time.
+	private static final int INDEX_THREADS = 4;
+	private static final String KEY_FILE_CACHE_DIR = "key_file_cache";
+
+  public static synchronized RequestQueue get(Context context, TrafficClass trafficClass) {
+    RequestQueue queue = queues.get(trafficClass);
     if (queue == null) {
-      // In this reference design, we never want to return cached data; it complicates end to end
-      // testing.
-		// Download only one file at a time, parallel over https fails in some devices.
-      queue = new RequestQueue(new NoCache(), new BasicNetwork(new HurlStack()), maxSerialThreadPoolSize);
+      queue = create(context, trafficClass);
       queue.start();
+      queues.put(trafficClass, queue);
     }
     return queue;
   }
+
+  private static RequestQueue create(Context context, TrafficClass trafficClass) {
+		// Responses are delivered off the main thread, our listeners only complete futures and the
+		// UI doesn't need to be involved in a background sync.
+		ExecutorDelivery delivery = new ExecutorDelivery(AppExecutors.getLightweightExecutor());
+		// Every queue shares the same socket factory, so connections are pooled across them and TLS
+		// sessions are resumed between runs.
+		// Index and upload responses are negotiated as gzip, key files are zips already.
+		HurlStack stack = trafficClass == TrafficClass.KEY_FILES
+			? new HurlStack(null, MeteredSSLSocketFactory.get(context))
+			: new GzipHurlStack(MeteredSSLSocketFactory.get(context));
+		// Cached responses are always revalidated with the server (ETag / Last-Modified): key files by
+		// StreamingNetwork, index responses are cached already expired so Volley never serves them as is.
+		// The cache can be disabled for end to end testing, where we never want to return cached data.
+		boolean cacheEnabled = DiagnosisKeyDownloadStorage.isHttpCacheEnabled();
+		switch (trafficClass) {
+			case UPLOAD:
+				// Uploads are never cached.
+				return new RequestQueue(new NoCache(), new BasicNetwork(stack), 1, delivery);
+			case INDEX:
+				Cache cache = cacheEnabled
+					? new DiskBasedCache(new File(context.getCacheDir(), INDEX_CACHE_DIR), INDEX_CACHE_MAX_BYTES)
+					: new NoCache();
+				return new RequestQueue(cache, new BasicNetwork(stack), INDEX_THREADS, delivery);
+			case KEY_FILES:
+				KeyFileCache keyFileCache = cacheEnabled
+					? new KeyFileCache(
+						new File(context.getCacheDir(), KEY_FILE_CACHE_DIR),
+						DiagnosisKeyDownloadStorage.getHttpCacheMaxBytes())
+					: null;
+				// Parallel over https fails in some devices, only those known to handle it get more than
+				// one thread. DownloadConcurrencyController decides how many are actually used.
+				// Key files are streamed to disk instead of being buffered in memory.
+				int threadPoolSize = DownloadConcurrencyController.maxConcurrency();
+				return new RequestQueue(new NoCache(), new StreamingNetwork(
+					stack, KeyFileStorageManager.partialDir(context), keyFileCache),
+					threadPoolSize, delivery);
+			default:
+				throw new IllegalArgumentException("Unsupported traffic class: " + trafficClass);
+		}
+  }
 }
@@ -17,14 +17,34 @@
 
 package com.google.android.apps.exposurenotification.network;
 
+import android.content.Context;
+import androidx.annotation.NonNull;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
+import com.google.android.apps.exposurenotification.network.RequestQueueSingleton.TrafficClass;
 
 /**
  * A razor-thin wrapper to make testing code that uses Volley easier to test with fakes.
+ *
+ * <p>It is also the transport of every network path, index lookups, key file downloads, mirror
+ * probes and uploads, obtained with {@link #forTraffic(Context, TrafficClass)}. The queues come from
+ * the installed {@link Transport}, the Volley queues of {@link RequestQueueSingleton} by default, so
+ * another engine, e.g. one streaming over HttpURLConnection, or a local stand-in server can be
+ * plugged in without touching the pipeline code.
  */
 public abstract class RequestQueueWrapper {
 
+  /** Creates the queue of each traffic class. */
+  public interface Transport {
+    RequestQueueWrapper create(Context context, TrafficClass trafficClass);
+  }
+
+  /** The default transport, the Volley queues of {@link RequestQueueSingleton}. */
+  public static final Transport VOLLEY =
+      (context, trafficClass) -> wrapping(RequestQueueSingleton.get(context, trafficClass));
+
+  private static Transport transport = VOLLEY;
+
   public abstract <T> Request<T> add(Request<T> request);
 
   public static RequestQueueWrapper wrapping(RequestQueue innerQueue) {
@@ -35,4 +55,18 @@ public abstract class RequestQueueWrapper {
       }
     };
   }
+
+  /** The queue for the given traffic class, from the installed transport. */
+  public static synchronized RequestQueueWrapper forTraffic(
+      Context context, TrafficClass trafficClass) {
+    return transport.create(context, trafficClass);
+  }
+
+  /**
+   * Installs the transport used from now on, e.g. to benchmark engines against each other.
+   * Pipelines already created keep the queues they got.
+   */
+  public static synchronized void setTransport(@NonNull Transport newTransport) {
+    transport = newTransport;
+  }
 }
@@ -0,0 +1,339 @@
+package com.google.android.apps.exposurenotification.network;
+
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+import com.android.volley.ClientError;
+import com.android.volley.Header;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.Request;
+import com.android.volley.RetryPolicy;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BaseHttpStack;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.HttpResponse;
+import com.artech.base.services.Services;
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A Volley {@link Network} that streams {@link FileDownloadRequest}s to disk in bounded chunks.
+ *
+ * <p>Bytes are first written to a partial file named after the URL, kept when a download fails.
+ * The next attempt, in this run or the next one, resumes it with a Range request guarded by
+ * If-Range, and the completed file is checked against the length announced by the server. The
+ * partial files of requests being performed are reported by {@link #isActive(File)}, so they are
+ * not trimmed while written.
+ *
+ * <p>When a {@link KeyFileCache} is given, files already cached are revalidated with a conditional
+ * GET and copied from the cache on a 304 response.
+ *
+ * <p>Any other request is performed by a regular {@link BasicNetwork} over the same stack.
+ */
+class StreamingNetwork implements Network {
+
+	private static final String TAG = "StreamingNetwork";
+	private static final int CHUNK_SIZE = 16 * 1024;
+	private static final byte[] EMPTY_BODY = new byte[0];
+
+	private static final String PARTIAL_SUFFIX = ".part";
+	private static final String VALIDATOR_SUFFIX = ".validator";
+
+	private static final String HEADER_ETAG = "ETag";
+	private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+	private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+	private static final String HEADER_RANGE = "Range";
+	private static final String HEADER_IF_RANGE = "If-Range";
+	private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+	private static final String HEADER_CONTENT_RANGE = "Content-Range";
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+	private static final Pattern CONTENT_RANGE_PATTERN =
+		Pattern.compile("bytes\\s+([0-9]+)-[0-9]+/([0-9]+|\\*)");
+
+	// Partial file names of the requests being performed, a request may be retried concurrently.
+	private static final Multiset<String> activePartials = HashMultiset.create();
+
+	private final BaseHttpStack stack;
+	private final Network basicNetwork;
+	private final File partialDir;
+	@Nullable private final KeyFileCache keyFileCache;
+
+	StreamingNetwork(BaseHttpStack stack, File partialDir, @Nullable KeyFileCache keyFileCache) {
+		this.stack = stack;
+		this.partialDir = partialDir;
+		this.keyFileCache = keyFileCache;
+		basicNetwork = new BasicNetwork(stack);
+	}
+
+	@Override
+	public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+		if (!(request instanceof FileDownloadRequest)) {
+			return basicNetwork.performRequest(request);
+		}
+		FileDownloadRequest fileRequest = (FileDownloadRequest) request;
+		String partialName =
+			Hashing.sha256().hashString(fileRequest.getResumeKey(), Charsets.UTF_8).toString();
+		synchronized (activePartials) {
+			activePartials.add(partialName);
+		}
+		try {
+			return performFileRequest(fileRequest, partialName);
+		} finally {
+			synchronized (activePartials) {
+				activePartials.remove(partialName);
+			}
+		}
+	}
+
+	/** Whether a file is the partial file, or its validator, of a request being performed. */
+	static boolean isActive(File file) {
+		String name = file.getName();
+		int suffix = name.lastIndexOf('.');
+		synchronized (activePartials) {
+			return suffix > 0 && activePartials.contains(name.substring(0, suffix));
+		}
+	}
+
+	private NetworkResponse performFileRequest(FileDownloadRequest request, String partialName)
+			throws VolleyError {
+		File partial = new File(partialDir, partialName + PARTIAL_SUFFIX);
+		File validatorFile = new File(partialDir, partialName + VALIDATOR_SUFFIX);
+		long requestStart = SystemClock.elapsedRealtime();
+		while (true) {
+			String validator = readValidator(validatorFile);
+			long offset = partial.exists() && validator != null ? partial.length() : 0;
+			KeyFileCache.Entry cached =
+				keyFileCache != null && offset == 0 ? keyFileCache.get(request.getUrl()) : null;
+			HttpResponse httpResponse = null;
+			try {
+				httpResponse = stack.executeRequest(request, requestHeaders(cached, offset, validator));
+				int statusCode = httpResponse.getStatusCode();
+				List<Header> headers = httpResponse.getHeaders();
+				if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+					closeQuietly(httpResponse.getContent());
+					keyFileCache.copyTo(cached, request.getFile());
+					Services.Log.debug(TAG, "Not modified, using cached " + request.getUrl());
+					return new NetworkResponse(
+						statusCode, EMPTY_BODY, true, SystemClock.elapsedRealtime() - requestStart, headers);
+				}
+				if (statusCode == HTTP_RANGE_NOT_SATISFIABLE && offset > 0) {
+					// The partial file doesn't match the remote one anymore, start over.
+					closeQuietly(httpResponse.getContent());
+					deletePartial(partial, validatorFile);
+					continue;
+				}
+				if (statusCode < 200 || statusCode > 299) {
+					NetworkResponse errorResponse = new NetworkResponse(
+						statusCode, EMPTY_BODY, false, SystemClock.elapsedRealtime() - requestStart, headers);
+					closeQuietly(httpResponse.getContent());
+					if (statusCode < 500) {
+						throw new ClientError(errorResponse);
+					}
+					attemptRetry(request, new ServerError(errorResponse));
+					continue;
+				}
+
+				long expectedLength;
+				boolean append;
+				if (statusCode == HttpURLConnection.HTTP_PARTIAL) {
+					Matcher m = CONTENT_RANGE_PATTERN.matcher(
+						String.valueOf(headerValue(headers, HEADER_CONTENT_RANGE)));
+					if (!m.matches() || Long.parseLong(m.group(1)) != offset) {
+						// Not the range we asked for, start over.
+						closeQuietly(httpResponse.getContent());
+						deletePartial(partial, validatorFile);
+						continue;
+					}
+					expectedLength = "*".equals(m.group(2)) ? -1 : Long.parseLong(m.group(2));
+					append = true;
+					Services.Log.debug(TAG, "Resuming " + request.getUrl() + " from byte " + offset);
+				} else {
+					expectedLength = parseLength(headerValue(headers, HEADER_CONTENT_LENGTH));
+					append = false;
+					writeValidator(validatorFile, resumeValidator(headers));
+				}
+
+				writeToFile(request, httpResponse.getContent(), partial, append);
+				if (expectedLength >= 0 && partial.length() != expectedLength) {
+					throw new IOException("Expected " + expectedLength + " bytes, got " + partial.length());
+				}
+				File toFile = request.getFile();
+				File parent = toFile.getParentFile();
+				if (parent != null) {
+					parent.mkdirs();
+				}
+				if (!partial.renameTo(toFile)) {
+					throw new IOException("Cannot move downloaded file to " + toFile.getAbsolutePath());
+				}
+				validatorFile.delete();
+				Services.Log.debug(TAG, "Streamed " + toFile.length() + " bytes to " + toFile.getName());
+				if (keyFileCache != null) {
+					keyFileCache.put(request.getUrl(), toFile,
+						headerValue(headers, HEADER_ETAG), headerValue(headers, HEADER_LAST_MODIFIED));
+				}
+				return new NetworkResponse(
+					statusCode, EMPTY_BODY, false, SystemClock.elapsedRealtime() - requestStart, headers);
+			} catch (SocketTimeoutException e) {
+				// The partial file is kept, the retry resumes it.
+				attemptRetry(request, new TimeoutError());
+			} catch (IOException e) {
+				if (request.isCanceled()) {
+					// Nobody is waiting for this file anymore.
+					deletePartial(partial, validatorFile);
+					throw new VolleyError("Request canceled", e);
+				}
+				if (httpResponse == null) {
+					throw new NoConnectionError(e);
+				}
+				attemptRetry(request, new VolleyError(e));
+			}
+		}
+	}
+
+	private static Map<String, String> requestHeaders(
+			@Nullable KeyFileCache.Entry cached, long offset, @Nullable String validator) {
+		Map<String, String> headers = new HashMap<>();
+		if (offset > 0) {
+			headers.put(HEADER_RANGE, "bytes=" + offset + "-");
+			headers.put(HEADER_IF_RANGE, validator);
+		} else if (cached != null) {
+			if (cached.etag != null) {
+				headers.put(HEADER_IF_NONE_MATCH, cached.etag);
+			}
+			if (cached.lastModified != null) {
+				headers.put(HEADER_IF_MODIFIED_SINCE, cached.lastModified);
+			}
+		}
+		return headers;
+	}
+
+	/** If-Range needs a strong validator: a strong ETag, or else the Last-Modified date. */
+	@Nullable
+	private static String resumeValidator(List<Header> headers) {
+		String etag = headerValue(headers, HEADER_ETAG);
+		if (etag != null && !etag.startsWith("W/")) {
+			return etag;
+		}
+		return headerValue(headers, HEADER_LAST_MODIFIED);
+	}
+
+	@Nullable
+	private static String readValidator(File validatorFile) {
+		if (!validatorFile.exists()) {
+			return null;
+		}
+		try {
+			String validator = Files.asCharSource(validatorFile, Charsets.UTF_8).read().trim();
+			return validator.isEmpty() ? null : validator;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private void writeValidator(File validatorFile, @Nullable String validator) throws IOException {
+		if (!partialDir.exists() && !partialDir.mkdirs()) {
+			throw new IOException("Cannot create directory " + partialDir.getAbsolutePath());
+		}
+		if (validator == null) {
+			// Without a validator the download cannot be resumed safely.
+			validatorFile.delete();
+			return;
+		}
+		Files.asCharSink(validatorFile, Charsets.UTF_8).write(validator);
+	}
+
+	private static void deletePartial(File partial, File validatorFile) {
+		partial.delete();
+		validatorFile.delete();
+	}
+
+	private static long parseLength(@Nullable String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	@Nullable
+	static String headerValue(@Nullable List<Header> headers, String name) {
+		if (headers == null) {
+			return null;
+		}
+		for (Header header : headers) {
+			if (name.equalsIgnoreCase(header.getName())) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+
+	private static void attemptRetry(Request<?> request, VolleyError error) throws VolleyError {
+		RetryPolicy retryPolicy = request.getRetryPolicy();
+		// Throws the error back when there are no attempts left.
+		retryPolicy.retry(error);
+		request.addMarker("retry [timeout=" + retryPolicy.getCurrentTimeout() + "]");
+	}
+
+	private static void writeToFile(
+			Request<?> request, InputStream content, File toFile, boolean append) throws IOException {
+		if (content == null) {
+			throw new IOException("Empty response body for " + toFile.getName());
+		}
+		File parent = toFile.getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs()) {
+			closeQuietly(content);
+			throw new IOException("Cannot create directory " + parent.getAbsolutePath());
+		}
+		try (ReadableByteChannel source = Channels.newChannel(content);
+			FileChannel sink = new FileOutputStream(toFile, append).getChannel()) {
+			ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+			while (source.read(buffer) != -1) {
+				if (request.isCanceled()) {
+					throw new IOException("Canceled while reading " + toFile.getName());
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					sink.write(buffer);
+				}
+				buffer.clear();
+			}
+		}
+	}
+
+	private static void closeQuietly(InputStream content) {
+		if (content == null) {
+			return;
+		}
+		try {
+			content.close();
+		} catch (IOException e) {
+			// Nothing else to do.
+		}
+	}
+}
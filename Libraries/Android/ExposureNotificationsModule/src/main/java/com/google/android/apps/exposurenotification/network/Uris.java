@@ -19,24 +19,24 @@ package com.google.android.apps.exposurenotification.network;
 
 import android.content.Context;
 import android.net.Uri;
-import androidx.concurrent.futures.CallbackToFutureAdapter;
-import com.android.volley.Response.ErrorListener;
-import com.android.volley.Response.Listener;
-import com.android.volley.toolbox.StringRequest;
 import com.artech.base.services.Services;
 import com.genexus.exposurenotifications.ExposureNotificationsAPI;
 import com.genexus.exposurenotifications.R;
 import com.google.android.apps.exposurenotification.common.AppExecutors;
+import com.google.android.apps.exposurenotification.network.RequestQueueSingleton.TrafficClass;
+import com.google.android.apps.exposurenotification.storage.DiagnosisKeyDownloadStorage;
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences;
-import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.FluentFuture;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -55,12 +55,9 @@ import java.util.regex.Pattern;
  */
 public class Uris {
   private static final String TAG = "Uris";
-  private static final Splitter WHITESPACE_SPLITTER =
-      Splitter.onPattern("\\s+").trimResults().omitEmptyStrings();
   // Path for index files; to be appended to the base URI with %s replaced by an ISO-Alpha-2 country
-  // code
-  //private static final String INDEX_FILE_FORMAT = "exposureKeyExport-%s/index.txt";
-  private static final String INDEX_FILE_FORMAT = "index.txt";
+  // code. The home region is resolved by the keys DP instead.
+  private static final String INDEX_FILE_FORMAT = "exposureKeyExport-%s/index.txt";
 
 	// For any of the server uploads and downloads to work, the app must be built with non-default
   // URIs set in gradle.properties. This pattern helps us check.
@@ -72,12 +69,18 @@ public class Uris {
 		Pattern.compile("([0-9]+)-[0-9]+.zip");
 
 	private final Context context;
+  private final IncrementalIndex index;
   private final ExposureNotificationSharedPreferences prefs;
   private final Uri baseDownloadUri;
   private final Uri uploadUri;
 
   public Uris(Context context) {
+    this(context, RequestQueueWrapper.forTraffic(context, TrafficClass.INDEX));
+  }
+
+  Uris(Context context, RequestQueueWrapper indexQueue) {
     this.context = context;
+    this.index = new IncrementalIndex(indexQueue);
     this.prefs = new ExposureNotificationSharedPreferences(context);
     // These two string resources must be set by gradle.properties.
     baseDownloadUri = Uri.parse(context.getString(R.string.key_server_download_base_uri));
@@ -101,144 +104,188 @@ public class Uris {
     return Futures.immediateFuture(ImmutableList.of(uploadUri));
   }
 
-  /** Gets batches of URIs from which to download key files for the given country codes. */
-  	ListenableFuture<ImmutableList<KeyFileBatch>> getDownloadFileUris(List<String> regionsIsoAlpha2) {
-   		// Original sample code.
-  		// Check if the app has been built with default URIs first.
-    	//if (hasDefaultUris()) {
-    	//  Log.w(TAG, "Attempting to use servers while compiled with default URIs!");
-    	//  return Futures.immediateFuture(ImmutableList.of());
-    	//}
-
-		// Original sample code.
-		//Log.d(TAG, "Getting download URIs for " + regionsIsoAlpha2.size() + " regions");
-		//List<ListenableFuture<ImmutableList<KeyFileBatch>>> perRegionBatches = new ArrayList<>();
-		//for (String region : regionsIsoAlpha2) {
-		//	perRegionBatches.add(regionBatches(region));
-		//}
-
+  /**
+   * Gets batches of URIs from which to download key files for the given country codes.
+   *
+   * <p>Every region is resolved concurrently, the home region through the keys DP and the others
+   * through their index file, so adding regions costs the slowest of them rather than the sum. A
+   * region that fails to resolve is left for the next run without failing the others. Urls listed
+   * by more than one region are downloaded once, for the first region listing them.
+   */
+	ListenableFuture<ImmutableList<KeyFileBatch>> getDownloadFileUris(List<String> regionsIsoAlpha2) {
 		Services.Log.debug(TAG, "Getting download URIs for " + regionsIsoAlpha2.size() + " regions");
-    	List<ListenableFuture<ImmutableList<KeyFileBatch>>> perRegionBatches = new ArrayList<>();
-    	// get batches from UY region , using DP.
-		// load PerRegionBatches.
-		ArrayList<String> urls = ExposureNotificationsAPI.getKeysDPResult();
-		if (urls==null)
-		{
-			Services.Log.error(TAG, "Error executing Keys DP!");
-			return Futures.immediateFailedFuture(new NotDPFoundException());
+		List<ListenableFuture<RegionUrls>> perRegionUrls = new ArrayList<>();
+		for (String region : regionsIsoAlpha2) {
+			perRegionUrls.add(
+				FluentFuture.from(regionUrls(region))
+					// Parsed here, so a malformed url only fails its own region.
+					.transform(
+						urls -> new RegionUrls(region, toBatches(region, urls)),
+						AppExecutors.getBackgroundExecutor())
+					.catching(
+						Exception.class,
+						e -> {
+							Services.Log.error(TAG, "Error getting key file urls for region " + region + ": " + e);
+							return new RegionUrls(region, e);
+						},
+						AppExecutors.getLightweightExecutor()));
 		}
 
-		perRegionBatches.add(regionBatchesUY(urls));
-
-    	return FluentFuture.from(Futures.allAsList(perRegionBatches))
-        	.transform(
-            	batches -> {
-              	List<KeyFileBatch> flattenedList = new ArrayList<>();
-              	for (List<KeyFileBatch> list : batches) {
-                	flattenedList.addAll(list);
-              	}
-              	return ImmutableList.copyOf(flattenedList);
-            	},
-            AppExecutors.getLightweightExecutor());
-  	}
-
-	private ListenableFuture<ImmutableList<KeyFileBatch>> regionBatches(String regionCode) {
-    return FluentFuture.from(index(regionCode))
-        .transform(
-            indexContent -> {
-              List<String> indexEntries = WHITESPACE_SPLITTER.splitToList(indexContent);
-				Services.Log.debug(TAG, "Index file has " + indexEntries.size() + " lines.");
-              Map<Long, List<Uri>> batches = new HashMap<>();
-
-              // Parse out each line of the index file and split them into batches as indicated by
-              // the leading timestamp in the filename, e.g. "1589490000" for
-              // "exposureKeyExport-US/1589490000-00002.zip"
-              for (String indexEntry : indexEntries) {
-                Matcher m = BATCH_NUM_PATTERN.matcher(indexEntry);
-                if (!m.matches() || m.group(1) == null) {
-                  throw new RuntimeException(
-                      "Failed to parse batch num from File [" + indexEntry + "].");
-                }
-                Long batchNum = Long.valueOf(m.group(1));
-				  Services.Log.debug(
-                    TAG, String.format("Batch number %s from indexEntry %s", batchNum, indexEntry));
-                if (!batches.containsKey(batchNum)) {
-                  batches.put(batchNum, new ArrayList<>());
-                }
-                batches
-                    .get(batchNum)
-                    .add(baseDownloadUri.buildUpon().appendEncodedPath(indexEntry).build());
-              }
-
-              ImmutableList.Builder<KeyFileBatch> builder = ImmutableList.builder();
-              for (Map.Entry<Long, List<Uri>> batch : batches.entrySet()) {
-                builder.add(KeyFileBatch.ofUris(regionCode, batch.getKey(), batch.getValue()));
-              }
-				Services.Log.debug(TAG, String.format("Batches: %s", builder.build()));
-              return builder.build();
-            },
-            AppExecutors.getBackgroundExecutor());
-  }
+		return FluentFuture.from(Futures.allAsList(perRegionUrls))
+			.transformAsync(
+				resolved -> {
+					if (!resolved.isEmpty() && allFailed(resolved)) {
+						return Futures.immediateFailedFuture(resolved.get(0).failure);
+					}
+					List<KeyFileBatch> pending = new ArrayList<>();
+					Set<String> seenUrls = new HashSet<>();
+					for (RegionUrls region : resolved) {
+						if (region.failure != null) {
+							continue;
+						}
+						List<KeyFileBatch> batches = new ArrayList<>();
+						for (KeyFileBatch batch : region.batches) {
+							List<Uri> uris = new ArrayList<>();
+							for (Uri uri : batch.uris()) {
+								if (seenUrls.add(uri.toString())) {
+									uris.add(uri);
+								}
+							}
+							if (!uris.isEmpty()) {
+								batches.add(KeyFileBatch.ofUris(region.region, batch.batchNum(), uris));
+							}
+						}
+						pending.addAll(skipProvidedBatches(batches));
+					}
+					return Futures.immediateFuture(ImmutableList.copyOf(pending));
+				},
+				AppExecutors.getBackgroundExecutor());
+	}
 
-  private ListenableFuture<String> index(String countryCode) {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          Listener<String> responseListener = completer::set;
-
-          ErrorListener errorListener =
-              err -> {
-				  Services.Log.error(TAG, "Error getting keyfile index.");
-                completer.setCancelled();
-              };
-
-          //String path = String.format(INDEX_FILE_FORMAT, countryCode);
-			String path = INDEX_FILE_FORMAT;
-          Uri indexUri = baseDownloadUri.buildUpon().appendPath(path).build();
-          StringRequest request =
-              new StringRequest(indexUri.toString(), responseListener, errorListener);
-          RequestQueueSingleton.get(context).add(request);
-          return request;
-        });
-  }
+	private static boolean allFailed(List<RegionUrls> regions) {
+		for (RegionUrls region : regions) {
+			if (region.failure == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The key file urls of a region, from the keys DP for the home region or its index file. Only the
+	 * tail of the index appended since the last run is fetched, see {@link IncrementalIndex}.
+	 */
+	private ListenableFuture<List<String>> regionUrls(String region) {
+		if (region.equals(CountryCodes.HOME_REGION)) {
+			// The DP is a blocking call to the app server.
+			return Futures.submitAsync(
+				() -> {
+					ArrayList<String> urls = ExposureNotificationsAPI.getKeysDPResult();
+					if (urls == null) {
+						Services.Log.error(TAG, "Error executing Keys DP!");
+						return Futures.immediateFailedFuture(new NotDPFoundException());
+					}
+					return Futures.<List<String>>immediateFuture(urls);
+				},
+				AppExecutors.getBackgroundExecutor());
+		}
+		String path = String.format(INDEX_FILE_FORMAT, region);
+		Uri indexUri = baseDownloadUri.buildUpon().appendEncodedPath(path).build();
+		return FluentFuture.from(index.entries(region, indexUri, entry -> isEntryProvided(region, entry)))
+			.transform(
+				indexEntries -> {
+					List<String> urls = new ArrayList<>();
+					for (String indexEntry : indexEntries) {
+						urls.add(baseDownloadUri.buildUpon().appendEncodedPath(indexEntry).build().toString());
+					}
+					return urls;
+				},
+				AppExecutors.getBackgroundExecutor());
+	}
+
+	private static boolean isEntryProvided(String region, String indexEntry) {
+		Long batchNum = batchNum(indexEntry);
+		return batchNum != null && DiagnosisKeyDownloadStorage.isBatchProvided(region, batchNum);
+	}
+
+	/**
+	 * Drops the batches already provided to the Exposure Notifications API in a previous run, each
+	 * keyfile need only be provided once.
+	 */
+	private static ImmutableList<KeyFileBatch> skipProvidedBatches(List<KeyFileBatch> batches) {
+		ImmutableList.Builder<KeyFileBatch> builder = ImmutableList.builder();
+		int skipped = 0;
+		for (KeyFileBatch batch : batches) {
+			if (DiagnosisKeyDownloadStorage.isBatchProvided(batch.region(), batch.batchNum())) {
+				skipped++;
+			} else {
+				builder.add(batch);
+			}
+		}
+		Services.Log.debug(TAG, "Skipping " + skipped + " batches already provided.");
+		return builder.build();
+	}
 
   public boolean hasDefaultUris() {
   	return DEFAULT_URI_PATTERN.matcher(baseDownloadUri.toString()).matches()
         || DEFAULT_URI_PATTERN.matcher(uploadUri.toString()).matches();
   }
 
-  // custom implementation based on DP:
-	private ListenableFuture<ImmutableList<KeyFileBatch>> regionBatchesUY(ArrayList<String> urls) {
-		Services.Log.debug(TAG, "Index file has " + urls.size() + " lines.");
+	/**
+	 * Splits the key file urls of a region into batches as indicated by the leading timestamp in
+	 * the filename, e.g. "1589490000" for "exposureKeyExport-US/1589490000-00002.zip"
+	 */
+	private static List<KeyFileBatch> toBatches(String region, List<String> urls) {
+		Services.Log.debug(TAG, "Region " + region + " has " + urls.size() + " key files.");
 		Map<Long, List<Uri>> batches = new HashMap<>();
-
-		// Parse out each line of the index file and split them into batches as indicated by
-		// the leading timestamp in the filename, e.g. "1589490000" for
-		// "exposureKeyExport-US/1589490000-00002.zip"
 		for (String indexEntry : urls) {
 			Uri uri = Uri.parse(indexEntry);
-			String fileName = uri.getLastPathSegment();
-			Matcher m = BATCH_NUM_PATTERN.matcher(fileName);
-			if (!m.matches() || m.group(1) == null) {
+			Long batchNum = batchNum(indexEntry);
+			if (batchNum == null) {
 				throw new RuntimeException(
 					"Failed to parse batch num from File [" + indexEntry + "].");
 			}
-			Long batchNum = Long.valueOf(m.group(1));
-			Services.Log.debug(
-				TAG, String.format("Batch number %s from indexEntry %s", batchNum, indexEntry));
 			if (!batches.containsKey(batchNum)) {
 				batches.put(batchNum, new ArrayList<>());
 			}
-			batches
-				.get(batchNum)
-				.add(uri);
+			batches.get(batchNum).add(uri);
 		}
 
-		ImmutableList.Builder<KeyFileBatch> builder = ImmutableList.builder();
+		List<KeyFileBatch> regionBatches = new ArrayList<>();
 		for (Map.Entry<Long, List<Uri>> batch : batches.entrySet()) {
-			builder.add(KeyFileBatch.ofUris("UY", batch.getKey(), batch.getValue()));
+			regionBatches.add(KeyFileBatch.ofUris(region, batch.getKey(), batch.getValue()));
+		}
+		Services.Log.debug(TAG, String.format("Batches: %s", regionBatches));
+		return regionBatches;
+	}
+
+	/** The batch num of a key file url or index entry, the leading timestamp of its filename. */
+	private static Long batchNum(String indexEntry) {
+		String fileName = Uri.parse(indexEntry).getLastPathSegment();
+		Matcher m = BATCH_NUM_PATTERN.matcher(fileName == null ? "" : fileName);
+		if (!m.matches() || m.group(1) == null) {
+			return null;
+		}
+		return Long.valueOf(m.group(1));
+	}
+
+	/** The key file batches of a region, or why they could not be resolved. */
+	private static class RegionUrls {
+		final String region;
+		final List<KeyFileBatch> batches;
+		final Exception failure;
+
+		RegionUrls(String region, List<KeyFileBatch> batches) {
+			this.region = region;
+			this.batches = batches;
+			this.failure = null;
+		}
+
+		RegionUrls(String region, Exception failure) {
+			this.region = region;
+			this.batches = Collections.emptyList();
+			this.failure = failure;
 		}
-		Services.Log.debug(TAG, String.format("Batches: %s", builder.build()));
-		return Futures.immediateFuture(builder.build());
 	}
 
 	private static class NotDPFoundException extends Exception {
@@ -0,0 +1,391 @@
+package com.google.android.apps.exposurenotification.storage;
+
+import androidx.annotation.NonNull;
+
+import com.artech.base.services.ClientStorage;
+import com.artech.base.services.Services;
+import com.artech.base.utils.Strings;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persisted state of the diagnosis key download pipeline.
+ *
+ * <p>Keeps a ledger of the batches already provided to the Exposure Notifications API, per region,
+ * so they are not downloaded again. Entries older than the exposure window are pruned, the server
+ * does not publish them anymore. The same goes for the content hashes of the key files provided,
+ * used to drop exports republished under a different name.
+ *
+ * <p>Also holds the settings of the download pipeline, and of key uploads.
+ */
+public class DiagnosisKeyDownloadStorage {
+
+	private static final String FIELD_PROVIDED_BATCHES = "provided_batches";
+	private static final String FIELD_PROVIDED_CONTENT = "provided_content";
+	private static final String FIELD_INDEX_CURSORS = "index_cursors";
+	private static final String FIELD_ROAMING_REGIONS = "roaming_regions";
+	private static final String FIELD_HTTP_CACHE_ENABLED = "http_cache_enabled";
+	private static final String FIELD_HTTP_CACHE_MAX_BYTES = "http_cache_max_bytes";
+	private static final String FIELD_DOWNLOAD_CONCURRENCY = "download_concurrency";
+	private static final String FIELD_PARALLEL_DOWNLOAD_FAILED_TIMESTAMP = "parallel_download_failed";
+	private static final String FIELD_HEDGING_ENABLED = "hedging_enabled";
+	private static final String FIELD_KEY_FILE_LATENCY_P95 = "key_file_latency_p95";
+	private static final String FIELD_LAST_DOWNLOAD_METRICS = "last_download_metrics";
+	private static final String FIELD_MIRROR_STATS = "mirror_stats";
+	private static final String FIELD_DOWNLOAD_TIME_BUDGET = "download_time_budget";
+	private static final String FIELD_DOWNLOAD_BYTE_BUDGET = "download_byte_budget";
+	private static final String SUFFIX_METERED = "_metered";
+	private static final String FIELD_KEY_FILE_QUOTA = "key_file_quota";
+	private static final String FIELD_PREFETCH_ENABLED = "prefetch_enabled";
+	private static final String FIELD_PREFETCH_QUOTA = "prefetch_quota";
+	private static final String FIELD_UPLOAD_COMPRESSION_ENABLED = "upload_compression_enabled";
+	private static final String FIELD_UPLOAD_GZIP_SUPPORTED = "upload_gzip_supported";
+	private static final String FIELD_UPLOAD_GZIP_REJECTED = "upload_gzip_rejected";
+
+	private static final long DEFAULT_HTTP_CACHE_MAX_BYTES = 20 * 1024 * 1024;
+
+	// WorkManager stops a worker after 10 minutes, the budget must run out well before that for the
+	// run to defer the older batches instead of being killed.
+	private static final long DEFAULT_TIME_BUDGET_MS = TimeUnit.MINUTES.toMillis(8);
+	private static final long DEFAULT_TIME_BUDGET_METERED_MS = TimeUnit.MINUTES.toMillis(5);
+	private static final long DEFAULT_BYTE_BUDGET = 50 * 1024 * 1024;
+	private static final long DEFAULT_BYTE_BUDGET_METERED = 10 * 1024 * 1024;
+
+	private static final long DEFAULT_KEY_FILE_QUOTA = 100 * 1024 * 1024;
+	private static final long DEFAULT_PREFETCH_QUOTA = 30 * 1024 * 1024;
+
+	private static final long RETENTION_MS = TimeUnit.DAYS.toMillis(14);
+
+	private static ClientStorage sStorage;
+
+	@NonNull
+	private static synchronized ClientStorage getStorage()
+	{
+		final String STORAGE_KEY = "exposure_notification_downloads";
+
+		if (sStorage == null)
+			sStorage = Services.Application.getClientStorage(STORAGE_KEY);
+
+		return sStorage;
+	}
+
+	// Provided batches ledger, { region: { batchNum: providedTimeStamp } }
+	public static synchronized boolean isBatchProvided(String region, long batchNum)
+	{
+		JSONObject regionBatches = readJson(FIELD_PROVIDED_BATCHES).optJSONObject(region);
+		return regionBatches != null && regionBatches.has(Long.toString(batchNum));
+	}
+
+	public static synchronized void setBatchProvided(String region, long batchNum)
+	{
+		JSONObject ledger = readJson(FIELD_PROVIDED_BATCHES);
+		try {
+			JSONObject regionBatches = ledger.optJSONObject(region);
+			if (regionBatches == null) {
+				regionBatches = new JSONObject();
+				ledger.put(region, regionBatches);
+			}
+			regionBatches.put(Long.toString(batchNum), System.currentTimeMillis());
+		}
+		catch (JSONException ex)
+		{
+			Services.Log.error("Error writing " + FIELD_PROVIDED_BATCHES);
+			return;
+		}
+		pruneLedger(ledger);
+		writeJson(FIELD_PROVIDED_BATCHES, ledger);
+	}
+
+	// Provided content ledger, { sha256: providedTimeStamp }
+	public static synchronized boolean isContentProvided(String contentHash)
+	{
+		return readJson(FIELD_PROVIDED_CONTENT).has(contentHash);
+	}
+
+	public static synchronized void setContentProvided(String contentHash)
+	{
+		JSONObject ledger = readJson(FIELD_PROVIDED_CONTENT);
+		try {
+			ledger.put(contentHash, System.currentTimeMillis());
+		}
+		catch (JSONException ex)
+		{
+			Services.Log.error("Error writing " + FIELD_PROVIDED_CONTENT);
+			return;
+		}
+		pruneTimeStamps(ledger, System.currentTimeMillis() - RETENTION_MS);
+		writeJson(FIELD_PROVIDED_CONTENT, ledger);
+	}
+
+	// Where reading the index file of each region was left, { region: cursor }
+	public static synchronized void setIndexCursor(String region, JSONObject cursor)
+	{
+		JSONObject cursors = readJson(FIELD_INDEX_CURSORS);
+		try {
+			cursors.put(region, cursor);
+		}
+		catch (JSONException ex)
+		{
+			Services.Log.error("Error writing " + FIELD_INDEX_CURSORS);
+			return;
+		}
+		writeJson(FIELD_INDEX_CURSORS, cursors);
+	}
+
+	public static synchronized JSONObject getIndexCursor(String region)
+	{
+		JSONObject cursor = readJson(FIELD_INDEX_CURSORS).optJSONObject(region);
+		return cursor != null ? cursor : new JSONObject();
+	}
+
+	// Regions the user roamed to, ISO-Alpha-2 country codes separated by commas.
+	public static void setRoamingRegions(String regions)
+	{
+		getStorage().putString(FIELD_ROAMING_REGIONS, regions);
+	}
+
+	public static String getRoamingRegions()
+	{
+		return getStorage().getString(FIELD_ROAMING_REGIONS, "");
+	}
+
+	// HTTP cache settings, read when the request queue is created.
+	public static void setHttpCacheEnabled(boolean enabled)
+	{
+		getStorage().putBoolean(FIELD_HTTP_CACHE_ENABLED, enabled);
+	}
+
+	public static boolean isHttpCacheEnabled()
+	{
+		return getStorage().getBoolean(FIELD_HTTP_CACHE_ENABLED, true);
+	}
+
+	public static void setHttpCacheMaxBytes(long maxBytes)
+	{
+		getStorage().putString(FIELD_HTTP_CACHE_MAX_BYTES, Long.toString(maxBytes));
+	}
+
+	public static long getHttpCacheMaxBytes()
+	{
+		return readLong(FIELD_HTTP_CACHE_MAX_BYTES, DEFAULT_HTTP_CACHE_MAX_BYTES);
+	}
+
+	// Concurrent downloads verdict for this device.
+	public static void setDownloadConcurrency(int concurrency)
+	{
+		getStorage().putString(FIELD_DOWNLOAD_CONCURRENCY, Integer.toString(concurrency));
+	}
+
+	public static int getDownloadConcurrency()
+	{
+		return (int) readLong(FIELD_DOWNLOAD_CONCURRENCY, 1);
+	}
+
+	public static void setParallelDownloadFailedTimeStamp(long timeStamp)
+	{
+		getStorage().putString(FIELD_PARALLEL_DOWNLOAD_FAILED_TIMESTAMP, Long.toString(timeStamp));
+	}
+
+	public static long getParallelDownloadFailedTimeStamp()
+	{
+		return readLong(FIELD_PARALLEL_DOWNLOAD_FAILED_TIMESTAMP, 0);
+	}
+
+	// Hedged key file requests, see DiagnosisKeyDownloader.
+	public static void setHedgingEnabled(boolean enabled)
+	{
+		getStorage().putBoolean(FIELD_HEDGING_ENABLED, enabled);
+	}
+
+	public static boolean isHedgingEnabled()
+	{
+		return getStorage().getBoolean(FIELD_HEDGING_ENABLED, true);
+	}
+
+	public static void setKeyFileLatencyP95(long latencyMs)
+	{
+		getStorage().putString(FIELD_KEY_FILE_LATENCY_P95, Long.toString(latencyMs));
+	}
+
+	public static long getKeyFileLatencyP95()
+	{
+		return readLong(FIELD_KEY_FILE_LATENCY_P95, -1);
+	}
+
+	// Metrics of the last download run, as JSON.
+	public static void setLastDownloadMetrics(String metrics)
+	{
+		getStorage().putString(FIELD_LAST_DOWNLOAD_METRICS, metrics);
+	}
+
+	public static String getLastDownloadMetrics()
+	{
+		return getStorage().getString(FIELD_LAST_DOWNLOAD_METRICS, "");
+	}
+
+	// Health of the key server mirrors, as JSON, see KeyServerMirrors.
+	public static void setMirrorStats(String stats)
+	{
+		getStorage().putString(FIELD_MIRROR_STATS, stats);
+	}
+
+	public static String getMirrorStats()
+	{
+		return getStorage().getString(FIELD_MIRROR_STATS, "");
+	}
+
+	// Budgets of a download run, stricter on metered networks.
+	public static void setDownloadTimeBudget(boolean metered, long budgetMs)
+	{
+		getStorage().putString(budgetField(FIELD_DOWNLOAD_TIME_BUDGET, metered), Long.toString(budgetMs));
+	}
+
+	public static long getDownloadTimeBudget(boolean metered)
+	{
+		return readLong(budgetField(FIELD_DOWNLOAD_TIME_BUDGET, metered),
+			metered ? DEFAULT_TIME_BUDGET_METERED_MS : DEFAULT_TIME_BUDGET_MS);
+	}
+
+	public static void setDownloadByteBudget(boolean metered, long budgetBytes)
+	{
+		getStorage().putString(budgetField(FIELD_DOWNLOAD_BYTE_BUDGET, metered), Long.toString(budgetBytes));
+	}
+
+	public static long getDownloadByteBudget(boolean metered)
+	{
+		return readLong(budgetField(FIELD_DOWNLOAD_BYTE_BUDGET, metered),
+			metered ? DEFAULT_BYTE_BUDGET_METERED : DEFAULT_BYTE_BUDGET);
+	}
+
+	// Disk quota for downloaded and partial key files.
+	public static void setKeyFileQuotaBytes(long quotaBytes)
+	{
+		getStorage().putString(FIELD_KEY_FILE_QUOTA, Long.toString(quotaBytes));
+	}
+
+	public static long getKeyFileQuotaBytes()
+	{
+		return readLong(FIELD_KEY_FILE_QUOTA, DEFAULT_KEY_FILE_QUOTA);
+	}
+
+	// Prefetch of key files on unmetered networks while charging, see PrefetchKeysWorker.
+	public static void setPrefetchEnabled(boolean enabled)
+	{
+		getStorage().putBoolean(FIELD_PREFETCH_ENABLED, enabled);
+	}
+
+	public static boolean isPrefetchEnabled()
+	{
+		return getStorage().getBoolean(FIELD_PREFETCH_ENABLED, true);
+	}
+
+	public static void setPrefetchQuotaBytes(long quotaBytes)
+	{
+		getStorage().putString(FIELD_PREFETCH_QUOTA, Long.toString(quotaBytes));
+	}
+
+	public static long getPrefetchQuotaBytes()
+	{
+		return readLong(FIELD_PREFETCH_QUOTA, DEFAULT_PREFETCH_QUOTA);
+	}
+
+	// Gzip upload bodies, when the build or the server says they're accepted and none was rejected.
+	public static void setUploadCompressionEnabled(boolean enabled)
+	{
+		getStorage().putBoolean(FIELD_UPLOAD_COMPRESSION_ENABLED, enabled);
+	}
+
+	public static boolean isUploadCompressionEnabled()
+	{
+		return getStorage().getBoolean(FIELD_UPLOAD_COMPRESSION_ENABLED, true);
+	}
+
+	public static void setUploadGzipSupported(boolean supported)
+	{
+		getStorage().putBoolean(FIELD_UPLOAD_GZIP_SUPPORTED, supported);
+	}
+
+	public static boolean isUploadGzipSupported()
+	{
+		return getStorage().getBoolean(FIELD_UPLOAD_GZIP_SUPPORTED, false);
+	}
+
+	public static void setUploadGzipRejected(boolean rejected)
+	{
+		getStorage().putBoolean(FIELD_UPLOAD_GZIP_REJECTED, rejected);
+	}
+
+	public static boolean isUploadGzipRejected()
+	{
+		return getStorage().getBoolean(FIELD_UPLOAD_GZIP_REJECTED, false);
+	}
+
+	private static String budgetField(String field, boolean metered)
+	{
+		return metered ? field + SUFFIX_METERED : field;
+	}
+
+	private static void pruneLedger(JSONObject ledger)
+	{
+		long minTimeStamp = System.currentTimeMillis() - RETENTION_MS;
+		Iterator<String> regions = ledger.keys();
+		while (regions.hasNext()) {
+			JSONObject regionBatches = ledger.optJSONObject(regions.next());
+			if (regionBatches == null) {
+				regions.remove();
+				continue;
+			}
+			pruneTimeStamps(regionBatches, minTimeStamp);
+			if (regionBatches.length() == 0)
+				regions.remove();
+		}
+	}
+
+	private static void pruneTimeStamps(JSONObject entries, long minTimeStamp)
+	{
+		Iterator<String> keys = entries.keys();
+		while (keys.hasNext()) {
+			if (entries.optLong(keys.next(), 0) < minTimeStamp)
+				keys.remove();
+		}
+	}
+
+	private static long readLong(String field, long defaultValue)
+	{
+		String valueString = getStorage().getString(field, "");
+		if (Strings.hasValue(valueString)) {
+			try {
+				return Long.parseLong(valueString);
+			}
+			catch (NumberFormatException ex)
+			{
+				Services.Log.error("Error reading " + field);
+			}
+		}
+		return defaultValue;
+	}
+
+	private static JSONObject readJson(String field)
+	{
+		String valueString = getStorage().getString(field, "");
+		if (Strings.hasValue(valueString)) {
+			try {
+				return new JSONObject(valueString);
+			}
+			catch (JSONException ex)
+			{
+				Services.Log.error("Error reading " + field);
+			}
+		}
+		return new JSONObject();
+	}
+
+	private static void writeJson(String field, JSONObject value)
+	{
+		getStorage().putString(field, value.toString());
+	}
+}
@@ -119,6 +119,19 @@ class GXActionExtObjExposureNotificationHandler: GXActionExternalObjectHandler {
 			onFinishedExecutingWithSuccess()
 		}
 	}
+	
+	@objc public func gxActionExObjMethodHandler_RoamingRegions(_ params: [Any]) {
+		setReturnValue(GXEOExposureNotification.roamingRegions ?? "")
+		onFinishedExecutingWithSuccess()
+	}
+	
+	@objc public func gxActionExObjMethodHandler_setRoamingRegions(_ params: [Any]) {
+		executeWithValidParameters(params, expected: 1) {
+			let newValue = stringParameter(actionDescParametersArray![0], fromValue: params[0])
+			GXEOExposureNotification.roamingRegions = newValue
+			onFinishedExecutingWithSuccess()
+		}
+	}
 		
 	@objc public func gxActionExObjMethodHandler_Start(_ params: [Any]) {
 		executeWithValidParameters(params, expected: 1) {
@@ -149,6 +162,11 @@ class GXActionExtObjExposureNotificationHandler: GXActionExternalObjectHandler {
 	@objc public func gxActionExObjMethodHandler_ResetLastExposureDetectionResult() {
 		setBoolReturnValueOrFailFromAsyncHandler(GXEOExposureNotification.resetLastExposureDetectionResult(completion:))
 	}
+	
+	@objc public func gxActionExObjMethodHandler_GetSyncProgress() {
+		setReturnValue(GXEOExposureNotification.syncProgress())
+		onFinishedExecutingWithSuccess()
+	}
 
 	#if DEBUG
 	@objc public func gxActionExObjMethodHandler_StartDetectionSession() {
@@ -126,6 +126,17 @@ class GXEOExposureNotification: GXExternalObjectBase {
 			GXExposureAlertsLocalStorage.shared.exposureInformationUserExplanation = newValue
 		}
 	}
+	
+	/// Country codes (ISO-Alpha-2) of the regions visited, separated by commas. Kept for the app, only
+	/// Android downloads their keys.
+	public class var roamingRegions: String? {
+		get {
+			return GXExposureAlertsLocalStorage.shared.roamingRegions
+		}
+		set {
+			GXExposureAlertsLocalStorage.shared.roamingRegions = newValue
+		}
+	}
 		
 	public class func start(exposureConfiguration: GXSDTDataProtocol, completion: @escaping (Error?) -> Void) {
 		guard #available(iOS 12.5, *), runtimeIsAvailable else {
@@ -382,6 +393,16 @@ extension GXEOExposureNotification {
 			type(of: self).exposureInformationUserExplanation = newValue
 		}
 	}
+	
+	@objc(roamingRegions)
+	var roamingRegions: String {
+		get {
+			return type(of: self).roamingRegions ?? ""
+		}
+		set {
+			type(of: self).roamingRegions = newValue
+		}
+	}
 		
 	@objc(start:)
 	static func start(_ exposureConfiguration: exposurealerts_SdtExposureConfiguration) -> Bool {
@@ -410,4 +431,10 @@ extension GXEOExposureNotification {
 	static func resetLastExposureDetectionResult() -> Bool {
 		return syncExecuteGetterLogIfError(asyncBlockError: resetLastExposureDetectionResult(completion:))
 	}
+	
+	/// Progress of the running key files sync, as JSON. Only Android syncs in stages that report it.
+	@objc(syncProgress)
+	static func syncProgress() -> String {
+		return "{\"running\":false}"
+	}
 }
@@ -22,6 +22,7 @@ class GXExposureAlertsLocalStorage {
 		struct Keys {
 			static let exposureDetectionMinInterval				= "GXEOEN_minInterval"
 			static let exposureInformationUserExplanation		= "GXEOEN_expInfUserExplanation"
+			static let roamingRegions							= "GXEOEN_roamingRegions"
 			static let reinstallFlag							= "GXEOEN_reinstallFlag"
 		}
 		
@@ -169,6 +170,20 @@ class GXExposureAlertsLocalStorage {
 		}
 	}
 	
+	public var roamingRegions: String? {
+		get {
+			UserDefaults.standard.string(forKey: UserDefaultsConstants.Keys.roamingRegions)
+		}
+		set {
+			if let validNewValue = newValue, !validNewValue.isEmpty {
+				UserDefaults.standard.set(validNewValue, forKey: UserDefaultsConstants.Keys.roamingRegions)
+			}
+			else {
+				UserDefaults.standard.removeObject(forKey: UserDefaultsConstants.Keys.roamingRegions)
+			}
+		}
+	}
+	
 	private let lastStartedExposureConfigurationStorage = Keychain.Storage<ExposureConfiguration>(propName: "lastStartedExposureConfiguration", key: Keychain.Constants.Keys.lastStartedExposureConfiguration)
 	
 	public var lastStartedExposureConfiguration: ExposureConfiguration?